@@ -0,0 +1,491 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection to an IRC server whose non-blocking socket is looked after
+ * by one of the threads of an EventLoop.  That thread reads the lines from
+ * the server and passes them to the PircBot, pumps the PircBot's outgoing
+ * message queue, finishes any write that the socket could not take at
+ * once, and sends a PING when the server has been quiet for 5 minutes.
+ *  <p>
+ * Lines are written straight to the socket by the thread that sends them.
+ * Whatever the socket cannot take yet is kept, up to a limit, and written
+ * by the EventLoop when the socket is ready again.  If the limit is
+ * reached, the server is not keeping up, and the connection is closed.
+ *  <p>
+ * Until startReading is called, the lines from the server are kept for
+ * readLine, so that connect can read them while logging on.
+ */
+class ChannelConnection implements Connection {
+
+
+    /**
+     * Constructs a ChannelConnection.  It must then be registered.
+     *
+     * @param bot The PircBot that the connection is for.
+     * @param channel The connected channel, which must be non-blocking.
+     * @param worker The thread of the EventLoop that looks after it.
+     *
+     * @throws IOException if the encoding of the PircBot is not supported.
+     */
+    ChannelConnection(PircBot bot, SocketChannel channel, EventLoop.Worker worker) throws IOException {
+        _bot = bot;
+        _channel = channel;
+        _worker = worker;
+        _reader = new LineReader(bot, null, bot.getEncoding(), bot.getFallbackEncoding());
+        OutputStream out = new ChannelOutputStream();
+        if (bot.getEncoding() != null) {
+            // Assume the specified encoding is valid for this JVM.
+            _bwriter = new BufferedWriter(new OutputStreamWriter(out, bot.getEncoding()));
+        }
+        else {
+            // Otherwise, just use the JVM's default encoding.
+            _bwriter = new BufferedWriter(new OutputStreamWriter(out));
+        }
+    }
+
+
+    /**
+     * Hands the channel to the thread of the EventLoop.
+     */
+    void register() {
+        _worker.execute(new Runnable() {
+            public void run() {
+                _worker.add(ChannelConnection.this);
+                try {
+                    _key = _channel.register(_worker.selector, SelectionKey.OP_READ, ChannelConnection.this);
+                }
+                catch (ClosedChannelException e) {
+                    shutdown();
+                    return;
+                }
+                _lastRead = System.nanoTime();
+                updateInterest();
+            }
+        });
+    }
+
+
+    /**
+     * Waits for the next line from the IRC server while the PircBot is
+     * logging on.
+     *
+     * @return The line, or null if the server closed the connection.
+     */
+    public String readLine() throws IOException {
+        Object line;
+        try {
+            line = _received.take();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while logging on.");
+        }
+        if (line == END) {
+            // Leave it for startReading, in case it is called anyway.
+            _received.add(END);
+            return null;
+        }
+        return (String) line;
+    }
+
+
+    /**
+     * Starts passing lines from the IRC server to the PircBot, and sending
+     * lines from its outgoing message queue, on the thread of the EventLoop.
+     */
+    public void startReading() {
+        _worker.execute(new Runnable() {
+            public void run() {
+                _started = true;
+                Object line;
+                while ((line = _received.poll()) != null) {
+                    if (line == END) {
+                        disconnected();
+                        return;
+                    }
+                    handleLine((String) line);
+                }
+                pump();
+            }
+        });
+    }
+
+
+    /**
+     * Sends a raw line to the IRC server as soon as possible.
+     *
+     * @param line The raw line to send to the IRC server.
+     */
+    public void sendRawLine(String line) {
+        OutputThread.sendRawLine(_bot, _bwriter, line);
+    }
+
+
+    /**
+     * Sends several raw lines to the IRC server as soon as possible,
+     * with a single flush.
+     *
+     * @param lines The raw lines to send to the IRC server.
+     */
+    public void sendRawLines(List lines) {
+        OutputThread.sendRawLines(_bot, _bwriter, lines);
+    }
+
+
+    /**
+     * Returns true if this connection is still connected to the server.
+     *
+     * @return True if still connected.
+     */
+    public boolean isConnected() {
+        return _isConnected;
+    }
+
+
+    /**
+     * Returns the local address of the socket.
+     *
+     * @return The local address.
+     */
+    public InetAddress getLocalAddress() {
+        return _channel.socket().getLocalAddress();
+    }
+
+
+    /**
+     * Closes the connection, without onDisconnect being called.
+     */
+    public void close() {
+        dispose();
+    }
+
+
+    /**
+     * Closes the connection without onDisconnect being called subsequently.
+     */
+    public void dispose() {
+        _disposed = true;
+        abort();
+    }
+
+
+    /**
+     * Closes the connection as soon as possible, from any thread.
+     */
+    private void abort() {
+        _isConnected = false;
+        if (_worker.inLoop()) {
+            shutdown();
+        }
+        else {
+            _worker.execute(new Runnable() {
+                public void run() {
+                    shutdown();
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Lets the EventLoop know that there are lines in the outgoing message
+     * queue.  Calls made before the EventLoop has got round to pumping the
+     * queue are folded into one.
+     */
+    void wakeOutput() {
+        if (_wakePending.compareAndSet(false, true)) {
+            _worker.execute(_pumpTask);
+        }
+    }
+
+
+    /**
+     * Handles the socket being ready.  Called on the thread of the
+     * EventLoop.
+     *
+     * @param key The SelectionKey of the channel.
+     */
+    void handleKey(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isWritable()) {
+                flushOutput();
+            }
+            if (key.isValid() && key.isReadable()) {
+                int count = _reader.read(_channel);
+                if (count < 0) {
+                    shutdown();
+                    return;
+                }
+                _lastRead = System.nanoTime();
+                String line;
+                while ((line = _reader.nextLine()) != null) {
+                    if (_started) {
+                        handleLine(line);
+                    }
+                    else {
+                        _received.add(line);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            shutdown();
+        }
+    }
+
+
+    /**
+     * Does whatever is due: pumping the outgoing message queue and
+     * pinging a quiet server.  Called on the thread of the EventLoop.
+     *
+     * @param now The current time, from System.nanoTime.
+     *
+     * @return The number of nanoseconds until this should be called
+     *         again, or -1 if there is nothing to wait for.
+     */
+    long runTimers(long now) {
+        if (!_started || _closed) {
+            return -1;
+        }
+        if (_pumpPending && now - _pumpAt >= 0) {
+            pump();
+        }
+        if (now - _lastRead >= PING_INTERVAL) {
+            // As InputThread does when reading times out.
+            _lastRead = now;
+            this.sendRawLine("PING " + (System.currentTimeMillis() / 1000));
+        }
+        long due = PING_INTERVAL - (now - _lastRead);
+        if (_pumpPending) {
+            due = Math.min(due, Math.max(_pumpAt - now, 0));
+        }
+        return due;
+    }
+
+
+    /**
+     * Sends the lines that the flood control allows from the outgoing
+     * message queue, and notes when to do so again.
+     */
+    private void pump() {
+        if (!_started || _closed) {
+            return;
+        }
+        long wait;
+        try {
+            wait = _bot.pumpOutput();
+        }
+        catch (Throwable t) {
+            InputThread.logFault(_bot, t);
+            wait = -1;
+        }
+        _pumpPending = (wait >= 0);
+        _pumpAt = System.nanoTime() + Math.max(wait, 0);
+    }
+
+
+    /**
+     * Passes a line to the PircBot.
+     */
+    private void handleLine(String line) {
+        try {
+            _bot.handleLine(line);
+        }
+        catch (Throwable t) {
+            InputThread.logFault(_bot, t);
+        }
+    }
+
+
+    /**
+     * Closes the channel, and lets the PircBot know unless the connection
+     * was disposed.  Called on the thread of the EventLoop.
+     */
+    private void shutdown() {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        _isConnected = false;
+        try {
+            _channel.close();
+        }
+        catch (IOException e) {
+            // Just assume the channel was already closed.
+        }
+        _worker.remove(this);
+        if (_started) {
+            disconnected();
+        }
+        else {
+            // Let readLine or startReading know.
+            _received.add(END);
+        }
+    }
+
+
+    /**
+     * Logs the disconnection and calls onDisconnect, on a new thread so
+     * that the PircBot may reconnect without holding up the EventLoop.
+     */
+    private void disconnected() {
+        if (_disposed) {
+            return;
+        }
+        _bot.log("*** Disconnected.");
+        _bot.startThread(new Runnable() {
+            public void run() {
+                _bot.onDisconnect();
+            }
+        });
+    }
+
+
+    /**
+     * Writes as much of the waiting output to the channel as it will take,
+     * and asks the EventLoop to finish the rest when the channel is ready.
+     */
+    private void flushOutput() throws IOException {
+        boolean pending;
+        synchronized (_outLock) {
+            _output.flip();
+            try {
+                _channel.write(_output);
+            }
+            finally {
+                _output.compact();
+            }
+            pending = _output.position() > 0;
+            if (pending == _writePending) {
+                return;
+            }
+            _writePending = pending;
+        }
+        if (_worker.inLoop()) {
+            updateInterest();
+        }
+        else {
+            _worker.execute(new Runnable() {
+                public void run() {
+                    updateInterest();
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Asks the Selector to say when the channel is ready for writing, if
+     * there is output waiting.  Called on the thread of the EventLoop.
+     */
+    private void updateInterest() {
+        if (_key == null || !_key.isValid()) {
+            return;
+        }
+        boolean pending;
+        synchronized (_outLock) {
+            pending = _writePending;
+        }
+        _key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+
+    /**
+     * The stream that the BufferedWriter writes to.  Bytes are kept until
+     * flush, which writes them to the channel.
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!_isConnected) {
+                throw new IOException("The connection is closed.");
+            }
+            synchronized (_outLock) {
+                if (_output.remaining() < len) {
+                    int needed = _output.position() + len;
+                    if (needed > MAX_OUTPUT) {
+                        // The server is not reading what we send.
+                        _bot.log("*** Closing a connection with more than " + MAX_OUTPUT + " bytes waiting to be sent.");
+                        abort();
+                        throw new IOException("Too much output waiting.");
+                    }
+                    ByteBuffer output = ByteBuffer.allocate(Math.min(Math.max(needed, _output.capacity() * 2), MAX_OUTPUT));
+                    _output.flip();
+                    output.put(_output);
+                    _output = output;
+                }
+                _output.put(b, off, len);
+            }
+        }
+
+        public void flush() throws IOException {
+            flushOutput();
+        }
+    }
+
+    private PircBot _bot;
+    private SocketChannel _channel;
+    private EventLoop.Worker _worker;
+    private SelectionKey _key = null;
+    private LineReader _reader;
+    private BufferedWriter _bwriter;
+
+    // Lines read while logging on, and the end of the stream.
+    private LinkedBlockingQueue _received = new LinkedBlockingQueue();
+    private static final Object END = new Object();
+
+    // Only used on the thread of the EventLoop.
+    private boolean _started = false;
+    private boolean _closed = false;
+    private long _lastRead;
+    private boolean _pumpPending = false;
+    private long _pumpAt = 0;
+
+    private volatile boolean _isConnected = true;
+    private volatile boolean _disposed = false;
+
+    // Output that the channel has not taken yet.
+    private final Object _outLock = new Object();
+    private ByteBuffer _output = ByteBuffer.allocate(INITIAL_OUTPUT);
+    private boolean _writePending = false;
+
+    private AtomicBoolean _wakePending = new AtomicBoolean();
+    private final Runnable _pumpTask = new Runnable() {
+        public void run() {
+            _wakePending.set(false);
+            pump();
+        }
+    };
+
+    private static final long PING_INTERVAL = 5 * 60 * 1000000000L;
+    private static final int INITIAL_OUTPUT = 1024;
+    private static final int MAX_OUTPUT = 1024 * 1024;
+
+}
@@ -0,0 +1,95 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * A connection from a PircBot to an IRC server.  This is either an
+ * InputThread, which reads from its own socket with its own thread, or
+ * a ChannelConnection, whose socket is looked after by an EventLoop.
+ *  <p>
+ * While the PircBot is logging on, it reads the server's replies itself
+ * with readLine.  Once it has logged on, it calls startReading, and
+ * every line after that is passed to its handleLine method.
+ */
+interface Connection {
+
+
+    /**
+     * Reads the next line from the server while logging on.
+     *
+     * @return The line, or null if the server closed the connection.
+     *
+     * @throws IOException if reading fails.
+     */
+    public String readLine() throws IOException;
+
+
+    /**
+     * Starts passing the lines from the server to the PircBot.
+     *
+     * @throws IOException if the connection cannot be set up for this.
+     */
+    public void startReading() throws IOException;
+
+
+    /**
+     * Sends a raw line to the IRC server as soon as possible.
+     *
+     * @param line The raw line to send to the IRC server.
+     */
+    public void sendRawLine(String line);
+
+
+    /**
+     * Sends several raw lines to the IRC server as soon as possible,
+     * with a single flush.
+     *
+     * @param lines The raw lines to send to the IRC server.
+     */
+    public void sendRawLines(List lines);
+
+
+    /**
+     * Returns true if this connection is still connected to the server.
+     *
+     * @return True if still connected.
+     */
+    public boolean isConnected();
+
+
+    /**
+     * Returns the local address of the connection.
+     *
+     * @return The local address.
+     */
+    public InetAddress getLocalAddress();
+
+
+    /**
+     * Closes the connection after logging on failed.
+     */
+    public void close();
+
+
+    /**
+     * Closes the connection without onDisconnect being called subsequently.
+     */
+    public void dispose();
+
+}
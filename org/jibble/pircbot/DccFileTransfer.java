@@ -106,7 +106,7 @@ public class DccFileTransfer {
      * Receive the file in a new thread.
      */
     void doReceive(final File file, final boolean resume) {
-        new Thread() {
+        _bot.startThread(new Runnable() {
             public void run() {
 
                 BufferedOutputStream foutput = null;
@@ -164,7 +164,7 @@ public class DccFileTransfer {
 
                 _bot.onFileTransferFinished(DccFileTransfer.this, exception);
             }
-        }.start();
+        });
     }
 
 
@@ -172,7 +172,7 @@ public class DccFileTransfer {
      * Method to send the file inside a new thread.
      */
     void doSend(final boolean allowResume) {
-        new Thread() {
+        _bot.startThread(new Runnable() {
             public void run() {
 
                 BufferedInputStream finput = null;
@@ -276,7 +276,7 @@ public class DccFileTransfer {
 
                 _bot.onFileTransferFinished(DccFileTransfer.this, exception);
             }
-        }.start();
+        });
     }
 
 
@@ -110,11 +110,11 @@ public class DccManager {
 
             final DccChat chat = new DccChat(_bot, nick, login, hostname, address, port);
 
-            new Thread() {
+            _bot.startThread(new Runnable() {
                 public void run() {
                     _bot.onIncomingChatRequest(chat);
                 }
-            }.start();
+            });
         }
         else {
             return false;
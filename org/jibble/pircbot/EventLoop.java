@@ -0,0 +1,320 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of threads that looks after the connections of many
+ * PircBots at once.  Normally each PircBot has an InputThread and an
+ * OutputThread of its own.  A PircBot that has been given an EventLoop
+ * with setEventLoop has neither: its socket is non-blocking and belongs
+ * to one of the threads of the EventLoop, which reads the lines from the
+ * server, passes them to the PircBot's handleLine method, sends the
+ * lines in its outgoing message queue as the flood control allows, and
+ * pings the server when it has been quiet for a while.  This lets one
+ * process run hundreds of bots with a handful of threads.
+ *  <p>
+ * The onXxx methods of such a PircBot are called on a thread of the
+ * EventLoop, which is shared with every other PircBot on that thread.
+ * They must therefore return quickly and never block.  In particular,
+ * a thread of an EventLoop never waits for room in an outgoing message
+ * queue that uses the Queue.OVERFLOW_BLOCK policy, as it may be the
+ * thread that would make the room; sending a message to a full queue
+ * from it throws an IllegalStateException instead.  Long-running work
+ * should be handed to another thread, for example with startThread.
+ *  <p>
+ * The onDisconnect method is the exception; it is called on a new thread,
+ * so that it may reconnect.  Connecting still blocks the thread that calls
+ * connect until the PircBot has logged on.
+ *
+ * @see PircBot#setEventLoop(EventLoop)
+ */
+public class EventLoop {
+
+
+    /**
+     * Constructs an EventLoop and starts its threads.  Each thread has
+     * its own Selector, and new connections are shared out between them
+     * in turn.
+     *
+     * @param threads The number of threads.
+     *
+     * @throws IOException if a Selector could not be opened.
+     * @throws IllegalArgumentException if the number of threads is not
+     *         positive.
+     */
+    public EventLoop(int threads) throws IOException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("The number of threads must be positive.");
+        }
+        _workers = new Worker[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                _workers[i] = new Worker(Selector.open(), i);
+            }
+        }
+        catch (IOException e) {
+            for (int i = 0; i < threads && _workers[i] != null; i++) {
+                _workers[i].closeSelector();
+            }
+            throw e;
+        }
+        for (int i = 0; i < threads; i++) {
+            _workers[i].start();
+        }
+    }
+
+
+    /**
+     * Returns the number of threads in this EventLoop.
+     *
+     * @return The number of threads.
+     */
+    public int getThreadCount() {
+        return _workers.length;
+    }
+
+
+    /**
+     * Returns the number of connections currently looked after by this
+     * EventLoop.
+     *
+     * @return The number of open connections.
+     */
+    public int getConnectionCount() {
+        return _connectionCount.get();
+    }
+
+
+    /**
+     * Stops the threads of this EventLoop and closes every connection that
+     * it looks after, without onDisconnect being called.  Any PircBot using
+     * this EventLoop will not be able to connect again.
+     */
+    public void shutdown() {
+        _shutdown = true;
+        for (int i = 0; i < _workers.length; i++) {
+            _workers[i].selector.wakeup();
+        }
+    }
+
+
+    /**
+     * Returns true if shutdown has been called.
+     *
+     * @return True if this EventLoop has been shut down.
+     */
+    public boolean isShutdown() {
+        return _shutdown;
+    }
+
+
+    /**
+     * Connects to an IRC server, and hands the connection to the next
+     * thread of this EventLoop.  The thread that calls this waits until
+     * the connection has been made.
+     *
+     * @param bot The PircBot that is connecting.
+     * @param hostname The hostname of the server to connect to.
+     * @param port The port number to connect to on the server.
+     *
+     * @return The connection.
+     *
+     * @throws IOException if it was not possible to connect to the server.
+     */
+    Connection open(PircBot bot, String hostname, int port) throws IOException {
+        if (_shutdown) {
+            throw new IOException("The EventLoop has been shut down.");
+        }
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+        ChannelConnection connection;
+        try {
+            channel.configureBlocking(false);
+            int next = (_next.getAndIncrement() & Integer.MAX_VALUE) % _workers.length;
+            connection = new ChannelConnection(bot, channel, _workers[next]);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        connection.register();
+        if (_shutdown) {
+            // The thread may have stopped before it could take the
+            // connection, and then nothing would ever close it.
+            connection.dispose();
+            channel.close();
+            throw new IOException("The EventLoop has been shut down.");
+        }
+        return connection;
+    }
+
+
+    /**
+     * One of the threads of an EventLoop, with its own Selector.  Other
+     * threads never touch the Selector or the connections directly, but
+     * hand tasks to this thread with execute.
+     */
+    final class Worker extends Thread {
+
+        Worker(Selector selector, int index) {
+            this.selector = selector;
+            this.setName(EventLoop.class.getName() + "-Thread-" + index);
+        }
+
+
+        /**
+         * Runs a task on this thread as soon as possible.
+         *
+         * @param task The task to run.
+         */
+        void execute(Runnable task) {
+            _tasks.add(task);
+            selector.wakeup();
+        }
+
+
+        /**
+         * Returns true if the caller is this thread.
+         *
+         * @return True if called on this thread.
+         */
+        boolean inLoop() {
+            return Thread.currentThread() == this;
+        }
+
+
+        /**
+         * Starts looking after a connection.  Must be called on this thread.
+         */
+        void add(ChannelConnection connection) {
+            _connections.add(connection);
+            _connectionCount.incrementAndGet();
+        }
+
+
+        /**
+         * Stops looking after a connection.  Must be called on this thread.
+         */
+        void remove(ChannelConnection connection) {
+            if (_connections.remove(connection)) {
+                _connectionCount.decrementAndGet();
+            }
+        }
+
+
+        /**
+         * Waits for the sockets to be ready, and handles them, the tasks
+         * from other threads and the timers of the connections, until
+         * the EventLoop is shut down.
+         */
+        public void run() {
+            while (!_shutdown) {
+                runTasks();
+
+                // Find out how long we may wait before a timer is due.
+                long now = System.nanoTime();
+                long wait = -1;
+                for (int i = 0; i < _connections.size(); i++) {
+                    ChannelConnection connection = (ChannelConnection) _connections.get(i);
+                    long due = connection.runTimers(now);
+                    if (due >= 0 && (wait < 0 || due < wait)) {
+                        wait = due;
+                    }
+                }
+
+                try {
+                    if (!_tasks.isEmpty() || wait == 0) {
+                        selector.selectNow();
+                    }
+                    else if (wait < 0) {
+                        selector.select();
+                    }
+                    else {
+                        // Round up, as select(0) would wait forever.
+                        selector.select((wait + 999999) / 1000000);
+                    }
+                }
+                catch (IOException e) {
+                    // Should not happen, and we can only carry on.
+                }
+
+                Iterator keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = (SelectionKey) keys.next();
+                    keys.remove();
+                    ((ChannelConnection) key.attachment()).handleKey(key);
+                }
+            }
+
+            // Close every connection that is left.
+            runTasks();
+            for (int i = _connections.size() - 1; i >= 0; i--) {
+                ((ChannelConnection) _connections.get(i)).close();
+            }
+            runTasks();
+            closeSelector();
+        }
+
+
+        /**
+         * Runs the tasks handed over by other threads.
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = (Runnable) _tasks.poll()) != null) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    // A task should not fail, but the other connections
+                    // on this thread must carry on if one does.
+                }
+            }
+        }
+
+
+        /**
+         * Closes the Selector quietly.
+         */
+        void closeSelector() {
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                // Do nothing.
+            }
+        }
+
+        final Selector selector;
+        private ConcurrentLinkedQueue _tasks = new ConcurrentLinkedQueue();
+        private List _connections = new ArrayList();
+    }
+
+    private final Worker[] _workers;
+    private AtomicInteger _next = new AtomicInteger();
+    private AtomicInteger _connectionCount = new AtomicInteger();
+    private volatile boolean _shutdown = false;
+
+}
@@ -28,20 +28,20 @@ import java.util.*;
  *          <a href="http://www.jibble.org/">http://www.jibble.org/</a>
  * @version    1.5.0 (Build time: Mon Dec 14 20:07:17 2009)
  */
-public class InputThread extends Thread {
+public class InputThread extends Thread implements Connection {
 
     /**
      * The InputThread reads lines from the IRC server and allows the
      * PircBot to handle them.
      *
      * @param bot An instance of the underlying PircBot.
-     * @param breader The BufferedReader that reads lines from the server.
+     * @param reader The LineReader that reads lines from the server.
      * @param bwriter The BufferedWriter that sends lines to the server.
      */
-    InputThread(PircBot bot, Socket socket, BufferedReader breader, BufferedWriter bwriter) {
+    InputThread(PircBot bot, Socket socket, LineReader reader, BufferedWriter bwriter) {
         _bot = bot;
         _socket = socket;
-        _breader = breader;
+        _reader = reader;
         _bwriter = bwriter;
         this.setName(this.getClass() + "-Thread");
     }
@@ -53,11 +53,22 @@ public class InputThread extends Thread {
      *
      * @param line The raw line to send to the IRC server.
      */
-    void sendRawLine(String line) {
+    public void sendRawLine(String line) {
         OutputThread.sendRawLine(_bot, _bwriter, line);
     }
 
 
+    /**
+     * Sends several raw lines to the IRC server as soon as possible,
+     * bypassing the outgoing message queue, with a single flush.
+     *
+     * @param lines The raw lines to send to the IRC server.
+     */
+    public void sendRawLines(java.util.List lines) {
+        OutputThread.sendRawLines(_bot, _bwriter, lines);
+    }
+
+
     /**
      * Returns true if this InputThread is connected to an IRC server.
      * The result of this method should only act as a rough guide,
@@ -65,11 +76,44 @@ public class InputThread extends Thread {
      *
      * @return True if still connected.
      */
-    boolean isConnected() {
+    public boolean isConnected() {
         return _isConnected;
     }
 
 
+    /**
+     * Reads the next line from the IRC server while the PircBot is
+     * logging on, before this Thread has been started.
+     *
+     * @return The line, or null if the server closed the connection.
+     */
+    public String readLine() throws IOException {
+        return _reader.readLine();
+    }
+
+
+    /**
+     * Starts this Thread reading lines from the IRC server, once the
+     * PircBot has logged on.
+     */
+    public void startReading() throws IOException {
+        // This makes the socket timeout on read operations after 5 minutes.
+        // Maybe in some future version I will let the user change this at runtime.
+        _socket.setSoTimeout(5 * 60 * 1000);
+        this.start();
+    }
+
+
+    /**
+     * Returns the local address of the socket.
+     *
+     * @return The local address.
+     */
+    public InetAddress getLocalAddress() {
+        return _socket.getLocalAddress();
+    }
+
+
     /**
      * Called to start this Thread reading lines from the IRC server.
      * When a line is read, this method calls the handleLine method
@@ -87,27 +131,12 @@ public class InputThread extends Thread {
             while (running) {
                 try {
                     String line = null;
-                    while ((line = _breader.readLine()) != null) {
+                    while ((line = _reader.readLine()) != null) {
                         try {
                             _bot.handleLine(line);
                         }
                         catch (Throwable t) {
-                            // Stick the whole stack trace into a String so we can output it nicely.
-                            StringWriter sw = new StringWriter();
-                            PrintWriter pw = new PrintWriter(sw);
-                            t.printStackTrace(pw);
-                            pw.flush();
-                            StringTokenizer tokenizer = new StringTokenizer(sw.toString(), "\r\n");
-                            synchronized (_bot) {
-                                _bot.log("### Your implementation of PircBot is faulty and you have");
-                                _bot.log("### allowed an uncaught Exception or Error to propagate in your");
-                                _bot.log("### code. It may be possible for PircBot to continue operating");
-                                _bot.log("### normally. Here is the stack trace that was produced: -");
-                                _bot.log("### ");
-                                while (tokenizer.hasMoreTokens()) {
-                                    _bot.log("### " + tokenizer.nextToken());
-                                }
-                            }
+                            logFault(_bot, t);
                         }
                     }
                     if (line == null) {
@@ -144,6 +173,45 @@ public class InputThread extends Thread {
     }
 
 
+    /**
+     * Logs an uncaught Exception or Error from the handling of a line.
+     *
+     * @param bot The PircBot that was handling the line.
+     * @param t The Exception or Error.
+     */
+    static void logFault(PircBot bot, Throwable t) {
+        // Stick the whole stack trace into a String so we can output it nicely.
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        t.printStackTrace(pw);
+        pw.flush();
+        StringTokenizer tokenizer = new StringTokenizer(sw.toString(), "\r\n");
+        synchronized (bot) {
+            bot.log("### Your implementation of PircBot is faulty and you have");
+            bot.log("### allowed an uncaught Exception or Error to propagate in your");
+            bot.log("### code. It may be possible for PircBot to continue operating");
+            bot.log("### normally. Here is the stack trace that was produced: -");
+            bot.log("### ");
+            while (tokenizer.hasMoreTokens()) {
+                bot.log("### " + tokenizer.nextToken());
+            }
+        }
+    }
+
+
+    /**
+     * Closes the socket after logging on failed.
+     */
+    public void close() {
+        try {
+            _socket.close();
+        }
+        catch (Exception e) {
+            // Do nothing.
+        }
+    }
+
+
     /**
      * Closes the socket without onDisconnect being called subsequently.
      */
@@ -159,10 +227,10 @@ public class InputThread extends Thread {
 
     private PircBot _bot = null;
     private Socket _socket = null;
-    private BufferedReader _breader = null;
+    private LineReader _reader = null;
     private BufferedWriter _bwriter = null;
-    private boolean _isConnected = true;
-    private boolean _disposed = false;
+    private volatile boolean _isConnected = true;
+    private volatile boolean _disposed = false;
 
     public static final int MAX_LINE_LENGTH = 512;
 
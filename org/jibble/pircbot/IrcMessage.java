@@ -0,0 +1,408 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+/**
+ * A line received from the IRC server, split into its prefix, command
+ * and parameters.  The line is scanned once when the IrcMessage is
+ * constructed, and only the positions of each part are recorded.  The
+ * parts are only copied out of the line when they are asked for, and
+ * are then kept, so asking again is cheap.
+ *  <p>
+ * A line has the form
+ * <code>[:prefix] command [param ...] [:trailing]</code>, where the
+ * prefix is either a server name or <code>nick!login@hostname</code>.
+ * The trailing parameter, which may contain spaces, is counted as the
+ * last parameter, without its colon.
+ *  <p>
+ * An IrcMessage is not safe for use by more than one thread at once.
+ */
+public class IrcMessage {
+
+
+    /**
+     * Constructs an IrcMessage by scanning a raw line.
+     *
+     * @param line The raw line, without the trailing CR LF.
+     */
+    public IrcMessage(String line) {
+        _line = line;
+        int length = line.length();
+        int pos = 0;
+
+        if (length > 0 && line.charAt(0) == ':') {
+            _prefixEnd = nextSpace(1);
+            for (int i = 1; i < _prefixEnd; i++) {
+                char c = line.charAt(i);
+                if (c == '!' && _exclamation < 0) {
+                    _exclamation = i;
+                }
+                else if (c == '@' && _at < 0) {
+                    _at = i;
+                }
+            }
+            pos = _prefixEnd;
+        }
+
+        _commandStart = skipSpaces(pos);
+        _commandEnd = nextSpace(_commandStart);
+        pos = _commandEnd;
+
+        while ((pos = skipSpaces(pos)) < length) {
+            if (line.charAt(pos) == ':') {
+                addParam(pos + 1, length);
+                _trailing = true;
+                break;
+            }
+            int end = nextSpace(pos);
+            addParam(pos, end);
+            pos = end;
+        }
+    }
+
+
+    /**
+     * Returns the raw line.
+     *
+     * @return The line that was scanned.
+     */
+    public String getLine() {
+        return _line;
+    }
+
+
+    /**
+     * Returns whether the line has a prefix.
+     *
+     * @return True if the line starts with a colon.
+     */
+    public boolean hasPrefix() {
+        return _prefixEnd >= 0;
+    }
+
+
+    /**
+     * Returns whether the prefix is of the form
+     * <code>nick!login@hostname</code>, which means the line came from
+     * a user rather than from a server.
+     *
+     * @return True if the prefix names a user.
+     */
+    public boolean hasUserPrefix() {
+        return _exclamation >= 0 && _at >= 0 && _exclamation < _at;
+    }
+
+
+    /**
+     * Returns the prefix, without its colon.
+     *
+     * @return The prefix, or an empty string if there is none.
+     */
+    public String getPrefix() {
+        if (_prefix == null) {
+            _prefix = hasPrefix() ? _line.substring(1, _prefixEnd) : "";
+        }
+        return _prefix;
+    }
+
+
+    /**
+     * Returns the nick from a user prefix.
+     *
+     * @return The nick, or an empty string if the prefix does not name
+     *         a user.
+     */
+    public String getNick() {
+        if (_nick == null) {
+            _nick = hasUserPrefix() ? _line.substring(1, _exclamation) : "";
+        }
+        return _nick;
+    }
+
+
+    /**
+     * Returns the login from a user prefix.
+     *
+     * @return The login, or an empty string if the prefix does not name
+     *         a user.
+     */
+    public String getLogin() {
+        if (_login == null) {
+            _login = hasUserPrefix() ? _line.substring(_exclamation + 1, _at) : "";
+        }
+        return _login;
+    }
+
+
+    /**
+     * Returns the hostname from a user prefix.
+     *
+     * @return The hostname, or an empty string if the prefix does not
+     *         name a user.
+     */
+    public String getHostname() {
+        if (_hostname == null) {
+            _hostname = hasUserPrefix() ? _line.substring(_at + 1, _prefixEnd) : "";
+        }
+        return _hostname;
+    }
+
+
+    /**
+     * Returns the command, as it appears in the line.
+     *
+     * @return The command, or an empty string if there is none.
+     */
+    public String getCommand() {
+        if (_command == null) {
+            _command = _line.substring(_commandStart, _commandEnd);
+        }
+        return _command;
+    }
+
+
+    /**
+     * Checks the command without copying it out of the line.  Case is
+     * ignored.
+     *
+     * @param command The command to compare with, for example "PRIVMSG".
+     *
+     * @return True if the line has this command.
+     */
+    public boolean isCommand(String command) {
+        return _commandEnd - _commandStart == command.length()
+                && _line.regionMatches(true, _commandStart, command, 0, command.length());
+    }
+
+
+    /**
+     * Returns the position in the line at which the command starts.
+     *
+     * @return The index of the first character of the command.
+     */
+    public int getCommandStart() {
+        return _commandStart;
+    }
+
+
+    /**
+     * Returns the position in the line at which the command ends.
+     *
+     * @return The index after the last character of the command.
+     */
+    public int getCommandEnd() {
+        return _commandEnd;
+    }
+
+
+    /**
+     * Returns the code of a numeric reply.
+     *
+     * @return The three-digit code, or -1 if the command is not a number.
+     *
+     * @see ReplyConstants
+     */
+    public int getNumeric() {
+        int length = _commandEnd - _commandStart;
+        if (length == 0 || length > 9) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = _commandStart; i < _commandEnd; i++) {
+            char c = _line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
+
+    /**
+     * Returns the number of parameters, including the trailing one.
+     *
+     * @return The number of parameters.
+     */
+    public int getParamCount() {
+        return _paramCount;
+    }
+
+
+    /**
+     * Returns whether the last parameter was given after a colon.
+     *
+     * @return True if the line has a trailing parameter.
+     */
+    public boolean hasTrailing() {
+        return _trailing;
+    }
+
+
+    /**
+     * Returns a parameter.  The trailing parameter is returned without
+     * its colon.
+     *
+     * @param index The index of the parameter, starting from 0.
+     *
+     * @return The parameter, or an empty string if there are not that
+     *         many parameters.
+     */
+    public String getParam(int index) {
+        if (index < 0 || index >= _paramCount) {
+            return "";
+        }
+        if (_params == null) {
+            _params = new String[_paramCount];
+        }
+        if (_params[index] == null) {
+            _params[index] = _line.substring(_bounds[index * 2], _bounds[index * 2 + 1]);
+        }
+        return _params[index];
+    }
+
+
+    /**
+     * Returns the position in the line at which a parameter starts.
+     *
+     * @param index The index of the parameter, starting from 0.
+     *
+     * @return The index of the first character of the parameter in the
+     *         line (after the colon, for the trailing parameter).
+     */
+    public int getParamStart(int index) {
+        checkParam(index);
+        return _bounds[index * 2];
+    }
+
+
+    /**
+     * Returns the position in the line at which a parameter ends.
+     *
+     * @param index The index of the parameter, starting from 0.
+     *
+     * @return The index after the last character of the parameter in
+     *         the line.
+     */
+    public int getParamEnd(int index) {
+        checkParam(index);
+        return _bounds[index * 2 + 1];
+    }
+
+
+    /**
+     * Returns the rest of the line from a parameter onwards, exactly as
+     * it was received.  If the parameter is the trailing parameter, its
+     * colon is included.
+     *
+     * @param index The index of the parameter, starting from 0.
+     *
+     * @return The parameters from this one to the end of the line, or an
+     *         empty string if there are not that many parameters.
+     */
+    public String getRawParams(int index) {
+        if (index < 0 || index >= _paramCount) {
+            return "";
+        }
+        int start = _bounds[index * 2];
+        if (_trailing && index == _paramCount - 1) {
+            start--;
+        }
+        return _line.substring(start);
+    }
+
+
+    /**
+     * Returns the raw line.
+     *
+     * @return The line that was scanned.
+     */
+    public String toString() {
+        return _line;
+    }
+
+
+    /**
+     * Records the position of the next parameter.
+     */
+    private void addParam(int start, int end) {
+        if (_paramCount * 2 == _bounds.length) {
+            int[] bounds = new int[_bounds.length * 2];
+            System.arraycopy(_bounds, 0, bounds, 0, _bounds.length);
+            _bounds = bounds;
+        }
+        _bounds[_paramCount * 2] = start;
+        _bounds[_paramCount * 2 + 1] = end;
+        _paramCount++;
+    }
+
+
+    /**
+     * Throws an IndexOutOfBoundsException if there is no such parameter.
+     */
+    private void checkParam(int index) {
+        if (index < 0 || index >= _paramCount) {
+            throw new IndexOutOfBoundsException("No parameter " + index + " in " + _paramCount);
+        }
+    }
+
+
+    /**
+     * Returns the index of the next space at or after pos, or the length
+     * of the line if there are none.
+     */
+    private int nextSpace(int pos) {
+        int space = _line.indexOf(' ', pos);
+        return (space < 0) ? _line.length() : space;
+    }
+
+
+    /**
+     * Returns the index of the first character at or after pos that is
+     * not a space.
+     */
+    private int skipSpaces(int pos) {
+        int length = _line.length();
+        while (pos < length && _line.charAt(pos) == ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private final String _line;
+
+    // Positions of the parts of the line.
+    private int _prefixEnd = -1;
+    private int _exclamation = -1;
+    private int _at = -1;
+    private int _commandStart;
+    private int _commandEnd;
+    // Start and end of each parameter, in pairs.
+    private int[] _bounds = new int[INITIAL_PARAMS * 2];
+    private int _paramCount = 0;
+    private boolean _trailing = false;
+
+    // The parts of the line that have been copied out so far.
+    private String _prefix = null;
+    private String _nick = null;
+    private String _login = null;
+    private String _hostname = null;
+    private String _command = null;
+    private String[] _params = null;
+
+    // IRC allows at most 15 parameters, but more are kept if sent.
+    private static final int INITIAL_PARAMS = 15;
+
+}
@@ -0,0 +1,309 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads lines from the IRC server.  Lines are found by looking for the
+ * CR and LF bytes in a buffer that is kept for the whole connection, and
+ * each line is only decoded once it is known to be wanted, into a
+ * character buffer that is also kept.  Empty lines are skipped.
+ *  <p>
+ * If the PircBot has a fallback encoding, each line is decoded on its
+ * own: a line of plain ASCII is copied straight into characters, a line
+ * that is valid UTF-8 is decoded as UTF-8, and any other line is decoded
+ * with the fallback encoding.  This copes with channels where some
+ * clients still use a legacy encoding.  The PircBot counts how often
+ * each of these is used.
+ *  <p>
+ * A line longer than the PircBot's maximum incoming line length is
+ * dropped without being decoded, and so is the rest of it as it arrives,
+ * so a server that never ends a line cannot make the buffer grow without
+ * bound.
+ *  <p>
+ * If reading times out, the InterruptedIOException is passed on and
+ * nothing is lost; the next call carries on where this one left off.
+ *  <p>
+ * Instead of reading from a stream with readLine, bytes may be read
+ * from a non-blocking channel with read, and the complete lines then
+ * taken with nextLine.
+ */
+class LineReader {
+
+
+    /**
+     * Constructs a LineReader.
+     *
+     * @param bot The PircBot that the lines are for.
+     * @param in The stream to read from, or null if bytes will be read
+     *           from a channel instead.
+     * @param encoding The name of the encoding, or null for the platform's
+     *                 default, as with InputStreamReader.
+     * @param fallbackEncoding The name of the encoding for lines that are
+     *                         not valid UTF-8, or null to decode every
+     *                         line with the first encoding.
+     */
+    LineReader(PircBot bot, InputStream in, String encoding, String fallbackEncoding) {
+        _bot = bot;
+        _in = in;
+        if (fallbackEncoding == null) {
+            Charset charset = (encoding == null) ? Charset.defaultCharset() : Charset.forName(encoding);
+            _decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        else {
+            _decoder = Charset.forName("UTF-8").newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            _fallbackDecoder = Charset.forName(fallbackEncoding).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        _buffer = ByteBuffer.allocate(0);
+        _chars = CharBuffer.allocate(0);
+    }
+
+
+    /**
+     * Reads the next line that is not empty and not too long.
+     *
+     * @return The line, without its CR or LF, or null at the end of the
+     *         stream.
+     *
+     * @throws IOException if reading fails or times out.
+     */
+    String readLine() throws IOException {
+        while (true) {
+            String line = nextLine();
+            if (line != null) {
+                return line;
+            }
+            byte[] bytes = _buffer.array();
+            int count = _in.read(bytes, _end, bytes.length - _end);
+            if (count < 0) {
+                // Pass on the last line, even though it did not end.
+                if (!_discarding && _end > _start) {
+                    int start = _start;
+                    _start = _scan = _end;
+                    return decode(start, _end);
+                }
+                return null;
+            }
+            _end += count;
+        }
+    }
+
+
+    /**
+     * Reads whatever bytes are available from a channel, without
+     * taking any lines.
+     *
+     * @param channel The channel to read from.
+     *
+     * @return The number of bytes read, or -1 at the end of the stream.
+     *
+     * @throws IOException if reading fails.
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        ensureCapacity(_bot.getMaxIncomingLineLength());
+        _buffer.position(_end);
+        int count = channel.read(_buffer);
+        _buffer.clear();
+        if (count > 0) {
+            _end += count;
+        }
+        return count;
+    }
+
+
+    /**
+     * Takes the next line that is not empty and not too long from the
+     * bytes that have already been read, and makes room for more bytes
+     * if there is no such line.
+     *
+     * @return The line, without its CR or LF, or null if no complete
+     *         line has been read.
+     */
+    String nextLine() {
+        int maxLength = _bot.getMaxIncomingLineLength();
+        ensureCapacity(maxLength);
+        byte[] bytes = _buffer.array();
+        for (int i = _scan; i < _end; i++) {
+            byte b = bytes[i];
+            if (b == '\r' || b == '\n') {
+                int start = _start;
+                _start = _scan = i + 1;
+                if (_discarding) {
+                    // This is the end of a line that was too long.
+                    _discarding = false;
+                }
+                else if (i - start > maxLength) {
+                    drop(maxLength);
+                }
+                else if (i > start) {
+                    return decode(start, i);
+                }
+            }
+        }
+        _scan = _end;
+
+        if (!_discarding && _end - _start > maxLength) {
+            drop(maxLength);
+            _discarding = true;
+        }
+        if (_discarding) {
+            _start = _scan = _end = 0;
+        }
+        else if (_start > 0) {
+            System.arraycopy(bytes, _start, bytes, 0, _end - _start);
+            _end -= _start;
+            _scan -= _start;
+            _start = 0;
+        }
+        return null;
+    }
+
+
+    /**
+     * Makes sure that the buffer can hold a line of the maximum length
+     * along with its line ending, keeping anything already in it.
+     */
+    private void ensureCapacity(int maxLength) {
+        int capacity = Math.max(maxLength + 2, MIN_CAPACITY);
+        if (_buffer.capacity() >= capacity) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        System.arraycopy(_buffer.array(), _start, buffer.array(), 0, _end - _start);
+        _end -= _start;
+        _scan -= _start;
+        _start = 0;
+        _buffer = buffer;
+        float charsPerByte = _decoder.maxCharsPerByte();
+        if (_fallbackDecoder != null) {
+            charsPerByte = Math.max(charsPerByte, _fallbackDecoder.maxCharsPerByte());
+        }
+        _chars = CharBuffer.allocate((int) (capacity * Math.max(charsPerByte, 1)) + 1);
+    }
+
+
+    /**
+     * Decodes a line from the buffer.
+     *
+     * @param start The index of the first byte of the line.
+     * @param end The index after the last byte of the line.
+     *
+     * @return The decoded line.
+     */
+    private String decode(int start, int end) {
+        if (_fallbackDecoder == null) {
+            return decode(_decoder, start, end);
+        }
+
+        byte[] bytes = _buffer.array();
+        char[] chars = _chars.array();
+        int i = start;
+        while (i < end && bytes[i] >= 0) {
+            chars[i - start] = (char) bytes[i];
+            i++;
+        }
+        if (i == end) {
+            _bot.countDecoded(DECODED_ASCII);
+            return new String(chars, 0, end - start);
+        }
+
+        String line = decode(_decoder, start, end);
+        if (line != null) {
+            _bot.countDecoded(DECODED_UTF8);
+            return line;
+        }
+        _bot.countDecoded(DECODED_FALLBACK);
+        return decode(_fallbackDecoder, start, end);
+    }
+
+
+    /**
+     * Decodes a line from the buffer with the given decoder.
+     *
+     * @param decoder The decoder to use.
+     * @param start The index of the first byte of the line.
+     * @param end The index after the last byte of the line.
+     *
+     * @return The decoded line, or null if the decoder reported that the
+     *         line is malformed.
+     */
+    private String decode(CharsetDecoder decoder, int start, int end) {
+        _buffer.limit(end);
+        _buffer.position(start);
+        _chars.clear();
+        decoder.reset();
+        CoderResult result = decoder.decode(_buffer, _chars, true);
+        if (!result.isError() && !result.isOverflow()) {
+            result = decoder.flush(_chars);
+        }
+        _buffer.clear();
+        if (result.isError()) {
+            return null;
+        }
+        if (result.isOverflow()) {
+            // Should not happen, as the buffer is big enough for any line.
+            return new String(_buffer.array(), start, end - start, decoder.charset());
+        }
+        return new String(_chars.array(), 0, _chars.position());
+    }
+
+
+    /**
+     * Counts and logs a line that was too long.
+     */
+    private void drop(int maxLength) {
+        _bot.countIncomingDropped();
+        _bot.log("*** Dropped a line of more than " + maxLength + " bytes from the server.");
+    }
+
+    private PircBot _bot;
+    private InputStream _in;
+    private CharsetDecoder _decoder;
+    private CharsetDecoder _fallbackDecoder = null;
+
+    // Bytes read but not yet passed on are from _start to _end, and
+    // those up to _scan have been checked for line endings.
+    private ByteBuffer _buffer;
+    private int _start = 0;
+    private int _scan = 0;
+    private int _end = 0;
+    private CharBuffer _chars;
+
+    // Whether the rest of an over-long line is being skipped.
+    private boolean _discarding = false;
+
+    private static final int MIN_CAPACITY = 4096;
+
+    // The ways a line can be decoded, for PircBot.countDecoded.
+    static final int DECODED_ASCII = 0;
+    static final int DECODED_UTF8 = 1;
+    static final int DECODED_FALLBACK = 2;
+
+}
@@ -0,0 +1,267 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures, truncates and wraps text by the number of bytes it takes up
+ * in the encoding used to talk to the IRC server, rather than by the
+ * number of characters.  Lines are never cut in the middle of a
+ * character (or surrogate pair), and text is wrapped at spaces where
+ * possible.
+ *  <p>
+ * The size of each character is worked out directly for UTF-8 and for
+ * single-byte encodings.  Other encodings are measured one character
+ * at a time with an encoder.
+ */
+public class LineSplitter {
+
+
+    /**
+     * Constructs a LineSplitter for the given encoding.
+     *
+     * @param encoding The name of the encoding, or null for the
+     *                 platform's default, as with OutputStreamWriter.
+     */
+    public LineSplitter(String encoding) {
+        Charset charset = (encoding == null) ? Charset.defaultCharset() : Charset.forName(encoding);
+        // Unencodable characters are replaced, as OutputStreamWriter does.
+        CharsetEncoder encoder = charset.newEncoder();
+        encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        encoder.onMalformedInput(CodingErrorAction.REPLACE);
+        if (charset.name().equals("UTF-8")) {
+            _kind = UTF_8;
+        }
+        else if (encoder.maxBytesPerChar() <= 1.0f) {
+            _kind = SINGLE_BYTE;
+        }
+        else {
+            _kind = OTHER;
+        }
+        _encoder = encoder;
+    }
+
+
+    /**
+     * Returns the number of bytes that part of a string takes up.
+     *
+     * @param text The text to measure.
+     * @param start The index of the first character.
+     * @param end The index after the last character.
+     *
+     * @return The number of bytes.
+     */
+    public int byteLength(String text, int start, int end) {
+        if (_kind == SINGLE_BYTE) {
+            return end - start;
+        }
+        int bytes = 0;
+        int i = start;
+        while (i < end) {
+            int chars = charCount(text, i, end);
+            bytes += charBytes(text, i, chars);
+            i += chars;
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Returns the number of bytes that a string takes up.
+     *
+     * @param text The text to measure.
+     *
+     * @return The number of bytes.
+     */
+    public int byteLength(String text) {
+        return byteLength(text, 0, text.length());
+    }
+
+
+    /**
+     * Truncates a string so that it takes up no more than the given
+     * number of bytes, without splitting a character.
+     *
+     * @param text The text to truncate.
+     * @param maxBytes The maximum number of bytes.
+     *
+     * @return The text, or as much of the start of it as fits.
+     */
+    public String truncate(String text, int maxBytes) {
+        if (text.length() <= maxBytes && (_kind == SINGLE_BYTE || (_kind == UTF_8 && isAscii(text)))) {
+            return text;
+        }
+        int end = fit(text, 0, text.length(), maxBytes);
+        return (end == text.length()) ? text : text.substring(0, end);
+    }
+
+
+    /**
+     * Wraps a string into pieces that each take up no more than the given
+     * number of bytes.  Pieces are broken at the last space that fits,
+     * which is dropped; a word too long to fit on its own is broken at a
+     * character boundary.  Every piece holds at least one character, even
+     * if that character alone is larger than the limit.
+     *
+     * @param text The text to wrap.
+     * @param maxBytes The maximum number of bytes in each piece.
+     *
+     * @return The pieces, in order.  This holds just the text if it fits.
+     */
+    public List split(String text, int maxBytes) {
+        List pieces = new ArrayList(1);
+        int start = 0;
+        int length = text.length();
+        while (true) {
+            int end = fit(text, start, length, maxBytes);
+            if (end == length) {
+                pieces.add(text.substring(start));
+                return pieces;
+            }
+            if (end == start) {
+                // Nothing fits, but progress must be made.
+                end = start + charCount(text, start, length);
+                if (end == length) {
+                    pieces.add(text.substring(start));
+                    return pieces;
+                }
+            }
+            int next = end;
+            if (text.charAt(end) == ' ') {
+                // The break falls on a space.
+                next = end + 1;
+            }
+            else {
+                int space = text.lastIndexOf(' ', end - 1);
+                if (space > start) {
+                    end = space;
+                    next = space + 1;
+                }
+            }
+            pieces.add(text.substring(start, end));
+            start = next;
+            if (start >= length) {
+                return pieces;
+            }
+        }
+    }
+
+
+    /**
+     * Finds the end of the longest part of a string, from the given start,
+     * that takes up no more than the given number of bytes.
+     */
+    private int fit(String text, int start, int end, int maxBytes) {
+        if (_kind == SINGLE_BYTE) {
+            return Math.min(end, start + Math.max(maxBytes, 0));
+        }
+        int bytes = 0;
+        int i = start;
+        while (i < end) {
+            int chars = charCount(text, i, end);
+            bytes += charBytes(text, i, chars);
+            if (bytes > maxBytes) {
+                return i;
+            }
+            i += chars;
+        }
+        return end;
+    }
+
+
+    /**
+     * Returns the number of chars in the character at the given index:
+     * 2 for a complete surrogate pair, otherwise 1.
+     */
+    private static int charCount(String text, int index, int end) {
+        if (Character.isHighSurrogate(text.charAt(index)) && index + 1 < end
+                && Character.isLowSurrogate(text.charAt(index + 1))) {
+            return 2;
+        }
+        return 1;
+    }
+
+
+    /**
+     * Returns the number of bytes that the character at the given index
+     * takes up.
+     */
+    private int charBytes(String text, int index, int chars) {
+        char c = text.charAt(index);
+        if (_kind == UTF_8) {
+            if (chars == 2) {
+                return 4;
+            }
+            else if (c < 0x80) {
+                return 1;
+            }
+            else if (c < 0x800) {
+                return 2;
+            }
+            else if (c >= '\uD800' && c <= '\uDFFF') {
+                // Unpaired surrogates are replaced with '?'.
+                return 1;
+            }
+            else {
+                return 3;
+            }
+        }
+        return encode(text, index, chars);
+    }
+
+
+    /**
+     * Encodes a single character and returns its size in bytes.
+     */
+    private int encode(String text, int index, int chars) {
+        synchronized (_encoder) {
+            _encoder.reset();
+            _buffer.clear();
+            _encoder.encode(CharBuffer.wrap(text, index, index + chars), _buffer, true);
+            _encoder.flush(_buffer);
+            return _buffer.position();
+        }
+    }
+
+
+    /**
+     * Returns true if the string is plain ASCII.
+     */
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static final int UTF_8 = 0;
+    private static final int SINGLE_BYTE = 1;
+    private static final int OTHER = 2;
+
+    private final int _kind;
+    private final CharsetEncoder _encoder;
+    private final ByteBuffer _buffer = ByteBuffer.allocate(16);
+
+}
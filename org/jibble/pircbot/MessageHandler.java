@@ -0,0 +1,37 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+/**
+ * Handles lines with a particular command or numeric reply that a
+ * PircBot subclass has registered with the addMessageHandler method.
+ * Handlers are called by the thread that reads from the server, in the
+ * same way as the onXxx methods of the PircBot.
+ *
+ * @see PircBot#addMessageHandler(String, MessageHandler)
+ * @see PircBot#addMessageHandler(int, MessageHandler)
+ */
+public interface MessageHandler {
+
+
+    /**
+     * Called when a line with the command or numeric reply that this
+     * handler was registered for arrives from the server.
+     *
+     * @param message The line from the server.
+     */
+    public void handleMessage(IrcMessage message);
+
+}
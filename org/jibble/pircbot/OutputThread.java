@@ -16,6 +16,8 @@ package org.jibble.pircbot;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A Thread which is responsible for sending messages to the IRC server.
@@ -23,6 +25,14 @@ import java.net.*;
  * immediately if possible.  If there is a flood of messages, then to
  * avoid getting kicked from a channel, we put a small delay between
  * each one.
+ *  <p>
+ * Lines waiting for different targets take turns, so that a flood of
+ * messages to one channel does not hold up messages to the others.
+ * If message coalescing is turned on, short messages waiting for the
+ * same target are joined into one line.
+ *  <p>
+ * When the PircBot uses an EventLoop, this Thread is never started, and
+ * the lines are sent by calling pump from the EventLoop instead.
  *
  * @author  Paul James Mutton,
  *          <a href="http://www.jibble.org/">http://www.jibble.org/</a>
@@ -43,6 +53,7 @@ public class OutputThread extends Thread {
     OutputThread(PircBot bot, Queue outQueue) {
         _bot = bot;
         _outQueue = outQueue;
+        _scheduler = new TargetScheduler(outQueue.getLanes());
         this.setName(this.getClass() + "-Thread");
     }
 
@@ -58,13 +69,13 @@ public class OutputThread extends Thread {
      *                 byte array.
      */
     static void sendRawLine(PircBot bot, BufferedWriter bwriter, String line) {
-        if (line.length() > bot.getMaxLineLength() - 2) {
-            line = line.substring(0, bot.getMaxLineLength() - 2);
-        }
+        line = bot.getLineSplitter().truncate(line, bot.getMaxLineLength() - 2);
         synchronized(bwriter) {
             try {
-                bwriter.write(line + "\r\n");
+                bwriter.write(line);
+                bwriter.write("\r\n");
                 bwriter.flush();
+                bot.countWrite(1);
                 bot.log(">>>" + line);
             }
             catch (Exception e) {
@@ -74,20 +85,83 @@ public class OutputThread extends Thread {
     }
 
 
+    /**
+     * A static method to write several lines to a BufferedWriter with a
+     * single flush, so that they usually reach the server in one write,
+     * and then pass each line to the log method of the supplied PircBot
+     * instance.
+     *
+     * @param bot The underlying PircBot instance.
+     * @param bwriter The BufferedWriter to write to.
+     * @param lines The lines to be written. "\r\n" is appended to each.
+     *              Lines that are too long are truncated in the list.
+     */
+    static void sendRawLines(PircBot bot, BufferedWriter bwriter, List lines) {
+        int maxLength = bot.getMaxLineLength() - 2;
+        LineSplitter splitter = bot.getLineSplitter();
+        synchronized(bwriter) {
+            try {
+                for (int i = 0; i < lines.size(); i++) {
+                    String line = splitter.truncate((String) lines.get(i), maxLength);
+                    lines.set(i, line);
+                    bwriter.write(line);
+                    bwriter.write("\r\n");
+                }
+                bwriter.flush();
+                bot.countWrite(lines.size());
+                for (int i = 0; i < lines.size(); i++) {
+                    bot.log(">>>" + lines.get(i));
+                }
+            }
+            catch (Exception e) {
+                // Silent response - just lose the lines.
+            }
+        }
+    }
+
+
     /**
      * This method starts the Thread consuming from the outgoing message
      * Queue and sending lines to the server.
      */
     public void run() {
         try {
+            TokenBucket floodControl = _bot.getFloodControl();
             boolean running = true;
             while (running) {
-                // Small delay to prevent spamming of the channel
-                Thread.sleep(_bot.getMessageDelay());
+                // Wait until a line may be sent before taking one, so that
+                // a line of higher priority that arrives meanwhile goes first.
+                pause(floodControl.getDelay(0));
 
-                String line = (String) _outQueue.next();
+                String line = _pending;
+                _pending = null;
+                if (line == null) {
+                    line = take(true);
+                }
+                if (line == EXPIRED) {
+                    continue;
+                }
                 if (line != null) {
-                    _bot.sendRawLine(line);
+                    // Small delay to prevent spamming of the channel
+                    pause(floodControl.reserve(getSize(line, floodControl)));
+                    _batch.add(line);
+
+                    // Gather any more lines that may be sent straight away,
+                    // so that they can all be written at once.
+                    while (_batch.size() < MAX_BATCH && (line = take(false)) != null) {
+                        if (line == EXPIRED) {
+                            continue;
+                        }
+                        int size = getSize(line, floodControl);
+                        if (floodControl.getDelay(size) > 0) {
+                            _pending = line;
+                            break;
+                        }
+                        floodControl.reserve(size);
+                        _batch.add(line);
+                    }
+                    _bot.sendRawLines(_batch);
+                    _batch.clear();
                 }
                 else {
                     running = false;
@@ -99,7 +173,340 @@ public class OutputThread extends Thread {
         }
     }
 
+
+    /**
+     * Sends whatever lines the flood control allows right now, without
+     * waiting.  This does the same as the run method, for PircBots whose
+     * connection is looked after by an EventLoop, and must only be called
+     * by one thread at a time.
+     *
+     * @return The number of nanoseconds after which this should be called
+     *         again, or -1 if there are no lines waiting.
+     */
+    long pump() {
+        TokenBucket floodControl = _bot.getFloodControl();
+        try {
+            while (_batch.size() < MAX_BATCH) {
+                if (_reserved) {
+                    // A line has been reserved, and may go once its delay is over.
+                    long wait = _sendAt - System.nanoTime();
+                    if (wait > 0) {
+                        return wait;
+                    }
+                    _batch.add(_pending);
+                    _pending = null;
+                    _reserved = false;
+                    continue;
+                }
+                // Wait until a line may be sent before taking one, as in run.
+                long delay = floodControl.getDelay(0);
+                if (delay > 0) {
+                    return (_pending != null || _outQueue.size() + _scheduler.size() > 0) ? delay : -1;
+                }
+
+                String line = _pending;
+                _pending = null;
+                if (line == null) {
+                    line = take(false);
+                }
+                if (line == null) {
+                    return -1;
+                }
+                if (line == EXPIRED) {
+                    continue;
+                }
+                long wait = floodControl.reserve(getSize(line, floodControl));
+                if (wait > 0) {
+                    _pending = line;
+                    _reserved = true;
+                    _sendAt = System.nanoTime() + wait;
+                }
+                else {
+                    _batch.add(line);
+                }
+            }
+            return 0;
+        }
+        finally {
+            if (!_batch.isEmpty()) {
+                _bot.sendRawLines(_batch);
+                _batch.clear();
+            }
+        }
+    }
+
+
+    /**
+     * Takes the next line to send, first from those added to the front
+     * of the outgoing message Queue and then from the scheduler.  A line
+     * that is past its deadline is dropped and counted instead.
+     *
+     * @param block Whether to wait for a line if there are none.
+     *
+     * @return The next line, EXPIRED if the line taken was dropped, or null
+     *         if there are none (or the thread was interrupted while waiting).
+     */
+    private String take(boolean block) {
+        if (block && _scheduler.size() == 0 && !_outQueue.await()) {
+            return null;
+        }
+        Object item = _outQueue.pollFront();
+        if (item != null) {
+            return isExpired(item) ? EXPIRED : getLine(item);
+        }
+        stage();
+        item = _scheduler.next();
+        if (item == null) {
+            return null;
+        }
+        if (isExpired(item)) {
+            return EXPIRED;
+        }
+        String separator = _bot.getMessageCoalescing();
+        if (separator == null) {
+            return getLine(item);
+        }
+        return coalesce(getLine(item), separator);
+    }
+
+
+    /**
+     * Checks whether an item taken from the outgoing message Queue is past
+     * its deadline, and counts it if so.  This must only be called for an
+     * item that is about to be sent or dropped.
+     *
+     * @param item The raw line, or a TimedLine holding it.
+     *
+     * @return True if the item should be dropped.
+     */
+    private boolean isExpired(Object item) {
+        if (item instanceof TimedLine && ((TimedLine) item).deadline.hasPassed()) {
+            _bot.countExpired();
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Joins the text of the messages waiting right behind a message for
+     * the same target onto it, for as long as the text still fits in one
+     * line.  Only PRIVMSG and NOTICE lines with the same command and target
+     * are joined, and CTCP messages are left alone.
+     *
+     * @param line The raw line taken from the scheduler.
+     * @param separator The text to put between the messages.
+     *
+     * @return The line with any following messages joined on.
+     */
+    private String coalesce(String line, String separator) {
+        int start = getTextStart(line);
+        if (start < 0) {
+            return line;
+        }
+        String command = line.substring(0, start);
+        LineSplitter splitter = _bot.getLineSplitter();
+        int budget = _bot.getTextLength(command);
+        int separatorLength = splitter.byteLength(separator);
+        int length = splitter.byteLength(line) - splitter.byteLength(command);
+        StringBuffer merged = null;
+        int count = 0;
+        Object item;
+        while ((item = _scheduler.peekFollowing()) != null) {
+            String next = getLine(item);
+            if (!next.startsWith(command) || getTextStart(next) != start) {
+                break;
+            }
+            int nextLength = splitter.byteLength(next) - splitter.byteLength(command);
+            if (length + separatorLength + nextLength > budget) {
+                break;
+            }
+            _scheduler.removeFollowing();
+            if (isExpired(item)) {
+                continue;
+            }
+            if (merged == null) {
+                merged = new StringBuffer(line);
+            }
+            merged.append(separator).append(next, start, next.length());
+            length += separatorLength + nextLength;
+            count++;
+        }
+        if (merged == null) {
+            return line;
+        }
+        _bot.countCoalesced(count);
+        return merged.toString();
+    }
+
+
+    /**
+     * Returns where the text of a PRIVMSG or NOTICE line starts.
+     *
+     * @param line The raw line.
+     *
+     * @return The index after the colon before the text, or -1 if the line
+     *         is not a PRIVMSG or NOTICE, or is a CTCP message.
+     */
+    private static int getTextStart(String line) {
+        if (!line.startsWith("PRIVMSG ") && !line.startsWith("NOTICE ")) {
+            return -1;
+        }
+        int start = line.indexOf(" :");
+        if (start < 0 || line.indexOf(' ', line.indexOf(' ') + 1) != start) {
+            return -1;
+        }
+        start += 2;
+        if (start < line.length() && line.charAt(start) == '\u0001') {
+            return -1;
+        }
+        return start;
+    }
+
+
+    /**
+     * Returns the raw line held by an item in the outgoing message Queue.
+     *
+     * @param item The raw line, or a TimedLine holding it.
+     *
+     * @return The raw line.
+     */
+    static String getLine(Object item) {
+        return (item instanceof TimedLine) ? ((TimedLine) item).line : (String) item;
+    }
+
+
+    /**
+     * A line in the outgoing message Queue that should be dropped rather
+     * than sent if it is still waiting after its deadline.
+     */
+    static final class TimedLine {
+
+        /**
+         * Constructs a TimedLine.
+         *
+         * @param line The raw line.
+         * @param deadline The deadline of the message that the line is
+         *                 part of.
+         */
+        TimedLine(String line, Deadline deadline) {
+            this.line = line;
+            this.deadline = deadline;
+        }
+
+        final String line;
+        final Deadline deadline;
+    }
+
+
+    /**
+     * The deadline shared by the lines of one message.  A message that
+     * was wrapped over several lines is sent or dropped as a whole: once
+     * one of its lines has been taken in time, the rest are never dropped.
+     */
+    static final class Deadline {
+
+        /**
+         * Constructs a Deadline.
+         *
+         * @param ttl The number of milliseconds from now after which the
+         *            message should be dropped.
+         */
+        Deadline(long ttl) {
+            _nanos = System.nanoTime() + ttl * 1000000L;
+        }
+
+        /**
+         * Checks the deadline as a line of the message is taken.
+         *
+         * @return True if the deadline has passed before any line of the
+         *         message was taken.
+         */
+        boolean hasPassed() {
+            if (!_started) {
+                if (System.nanoTime() - _nanos > 0) {
+                    return true;
+                }
+                _started = true;
+            }
+            return false;
+        }
+
+        private final long _nanos;
+        private volatile boolean _started = false;
+    }
+
+
+    /**
+     * Moves the lines waiting in the outgoing message Queue into the
+     * scheduler, so that their targets can take turns.  At most the
+     * capacity of the Queue is held in each lane, so that the Queue
+     * still fills up and applies its overflow policy when the bot
+     * cannot keep up.
+     */
+    private void stage() {
+        int capacity = _outQueue.getCapacity();
+        for (int lane = 0; lane < _outQueue.getLanes(); lane++) {
+            while (_scheduler.size(lane) < capacity) {
+                Object item = _outQueue.poll(lane);
+                if (item == null) {
+                    break;
+                }
+                _scheduler.add(item, lane);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of lines of the given priority that have been
+     * taken from the outgoing message Queue but not yet sent.
+     *
+     * @param lane The priority lane, or -1 for every lane.
+     *
+     * @return The number of lines.
+     */
+    int getScheduledSize(int lane) {
+        return (lane < 0) ? _scheduler.size() : _scheduler.size(lane);
+    }
+
+
+    /**
+     * Returns the size of a line as it will be sent, including the
+     * trailing CR LF.  This is only worked out exactly if the flood
+     * control limits bytes.
+     */
+    private int getSize(String line, TokenBucket floodControl) {
+        if (!floodControl.isByteLimited()) {
+            return line.length() + 2;
+        }
+        return _bot.getLineSplitter().byteLength(line) + 2;
+    }
+
+
+    /**
+     * Sleeps for the given number of nanoseconds, if it is positive.
+     */
+    private static void pause(long nanos) throws InterruptedException {
+        if (nanos > 0) {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    }
+
     private PircBot _bot = null;
     private Queue _outQueue = null;
+    private TargetScheduler _scheduler = null;
+
+    // Lines to be written together, and a line taken from the queue
+    // that could not be sent with the last batch.  When pumping, the
+    // line may already have been reserved, to be sent at _sendAt.
+    private static final int MAX_BATCH = 32;
+    private List _batch = new ArrayList();
+    private String _pending = null;
+    private boolean _reserved = false;
+    private long _sendAt = 0;
+
+    // Returned by take when the line taken has expired.
+    private static final String EXPIRED = new String("");
 
 }
@@ -63,6 +63,29 @@ public abstract class PircBot implements ReplyConstants {
     public static final String VERSION = "1.5.0";
 
 
+    /**
+     * Priority of lines that control the connection, such as raw lines
+     * sent with sendRawLineViaQueue.  These are sent before any others.
+     */
+    public static final int PRIORITY_CONTROL = 0;
+
+    /**
+     * Priority of replies to users.  This is the priority of messages,
+     * notices and CTCP commands sent without an explicit priority.
+     */
+    public static final int PRIORITY_INTERACTIVE = 1;
+
+    /**
+     * Priority of bulk output, which is only sent when there is nothing
+     * of higher priority waiting.
+     */
+    public static final int PRIORITY_BULK = 2;
+
+
+    // The longest host name that servers allow, for working out how much
+    // the prefix added to relayed messages may take up.
+    private static final int MAX_HOST_LENGTH = 63;
+
     private static final int OP_ADD = 1;
     private static final int OP_REMOVE = 2;
     private static final int VOICE_ADD = 3;
@@ -131,47 +154,56 @@ public abstract class PircBot implements ReplyConstants {
             throw new IOException("The PircBot is already connected to an IRC server.  Disconnect first.");
         }
 
+        // Senders must wait on the lock until we have logged on again.
+        _connection = null;
+
         // Don't clear the outqueue - there might be something important in it!
 
         // Clear everything we may have know about channels.
         this.removeAllChannels();
 
         // Connect to the server.
-        Socket socket =  new Socket(hostname, port);
-        this.log("*** Connected to server.");
-
-        _inetAddress = socket.getLocalAddress();
-
-        InputStreamReader inputStreamReader = null;
-        OutputStreamWriter outputStreamWriter = null;
-        if (getEncoding() != null) {
-            // Assume the specified encoding is valid for this JVM.
-            inputStreamReader = new InputStreamReader(socket.getInputStream(), getEncoding());
-            outputStreamWriter = new OutputStreamWriter(socket.getOutputStream(), getEncoding());
+        Connection connection = null;
+        if (_eventLoop != null) {
+            connection = _eventLoop.open(this, hostname, port);
         }
         else {
-            // Otherwise, just use the JVM's default encoding.
-            inputStreamReader = new InputStreamReader(socket.getInputStream());
-            outputStreamWriter = new OutputStreamWriter(socket.getOutputStream());
+            Socket socket =  new Socket(hostname, port);
+
+            OutputStreamWriter outputStreamWriter = null;
+            if (getEncoding() != null) {
+                // Assume the specified encoding is valid for this JVM.
+                outputStreamWriter = new OutputStreamWriter(socket.getOutputStream(), getEncoding());
+            }
+            else {
+                // Otherwise, just use the JVM's default encoding.
+                outputStreamWriter = new OutputStreamWriter(socket.getOutputStream());
+            }
+
+            LineReader reader = new LineReader(this, socket.getInputStream(), getEncoding(), getFallbackEncoding());
+            BufferedWriter bwriter = new BufferedWriter(outputStreamWriter);
+            connection = new InputThread(this, socket, reader, bwriter);
         }
+        this.log("*** Connected to server.");
 
-        BufferedReader breader = new BufferedReader(inputStreamReader);
-        BufferedWriter bwriter = new BufferedWriter(outputStreamWriter);
+        _inetAddress = connection.getLocalAddress();
+        _lineSplitter = new LineSplitter(getEncoding());
+        _ircConnection = connection;
 
         // Attempt to join the server.
+        List registration = new ArrayList(3);
         if (password != null && !password.equals("")) {
-            OutputThread.sendRawLine(this, bwriter, "PASS " + password);
+            registration.add("PASS " + password);
         }
         String nick = this.getName();
-        OutputThread.sendRawLine(this, bwriter, "NICK " + nick);
-        OutputThread.sendRawLine(this, bwriter, "USER " + this.getLogin() + " 8 * :" + this.getVersion());
-
-        _inputThread = new InputThread(this, socket, breader, bwriter);
+        registration.add("NICK " + nick);
+        registration.add("USER " + this.getLogin() + " 8 * :" + this.getVersion());
+        connection.sendRawLines(registration);
 
         // Read stuff back from the server to see if we connected.
         String line = null;
         int tries = 1;
-        while ((line = breader.readLine()) != null) {
+        while ((line = connection.readLine()) != null) {
 
             this.handleLine(line);
 
@@ -188,11 +220,11 @@ public abstract class PircBot implements ReplyConstants {
                     if (_autoNickChange) {
                         tries++;
                         nick = getName() + tries;
-                        OutputThread.sendRawLine(this, bwriter, "NICK " + nick);
+                        connection.sendRawLine("NICK " + nick);
                     }
                     else {
-                        socket.close();
-                        _inputThread = null;
+                        connection.close();
+                        _ircConnection = null;
                         throw new NickAlreadyInUseException(line);
                     }
                 }
@@ -200,8 +232,8 @@ public abstract class PircBot implements ReplyConstants {
                     // No action required.
                 }
                 else if (code.startsWith("5") || code.startsWith("4")) {
-                    socket.close();
-                    _inputThread = null;
+                    connection.close();
+                    _ircConnection = null;
                     throw new IrcException("Could not log into the IRC server: " + line);
                 }
             }
@@ -211,16 +243,21 @@ public abstract class PircBot implements ReplyConstants {
 
         this.log("*** Logged onto server.");
 
-        // This makes the socket timeout on read operations after 5 minutes.
-        // Maybe in some future version I will let the user change this at runtime.
-        socket.setSoTimeout(5 * 60 * 1000);
-
-        // Now start the InputThread to read all other lines from the server.
-        _inputThread.start();
-
-        // Now start the outputThread that will be used to send all messages.
+        // The OutputThread is needed to send all messages, though with an
+        // EventLoop, the EventLoop sends them instead of starting it.
+        boolean startOutput = false;
         if (_outputThread == null) {
             _outputThread = new OutputThread(this, _outQueue);
+            startOutput = (_eventLoop == null);
+        }
+
+        // Let other threads send without taking the lock from now on.
+        _connection = connection;
+
+        // Now start reading all other lines from the server.
+        connection.startReading();
+
+        if (startOutput) {
             _outputThread.start();
         }
 
@@ -380,26 +417,86 @@ public abstract class PircBot implements ReplyConstants {
     /**
      * Sends a raw line to the IRC server as soon as possible, bypassing the
      * outgoing message queue.
+     *  <p>
+     * Once the PircBot has logged on, this does not take the lock used by
+     * connect and disconnect, so sending from many threads does not hold
+     * up (or get held up by) connection management.  Writes to the server
+     * are still made one line at a time.
      *
      * @param line The raw line to send to the IRC server.
      */
-    public final synchronized void sendRawLine(String line) {
-        if (isConnected()) {
-            _inputThread.sendRawLine(line);
+    public final void sendRawLine(String line) {
+        Connection connection = getConnection();
+        if (connection != null) {
+            connection.sendRawLine(line);
         }
     }
 
     /**
-     * Sends a raw line through the outgoing message queue.
+     * Sends several raw lines to the IRC server as soon as possible, with
+     * a single flush.  This is used by the OutputThread to send the lines
+     * that the flood control allows at once.
+     *
+     * @param lines The raw lines to send to the IRC server.
+     */
+    final void sendRawLines(List lines) {
+        Connection connection = getConnection();
+        if (connection != null) {
+            connection.sendRawLines(lines);
+        }
+    }
+
+
+    /**
+     * Returns the current connection, if it is still connected.  After
+     * logging on, the connection is read without taking the lock.  While
+     * connecting, the lock is taken, so other threads wait until the
+     * PircBot has logged on, and the thread that is connecting can still
+     * answer the server (for example, with a PONG).
+     *
+     * @return The connection, or null if not connected.
+     */
+    private Connection getConnection() {
+        Connection connection = _connection;
+        if (connection == null) {
+            synchronized (this) {
+                connection = _ircConnection;
+            }
+        }
+        if (connection != null && connection.isConnected()) {
+            return connection;
+        }
+        return null;
+    }
+
+
+    /**
+     * Sends a raw line through the outgoing message queue, with
+     * control priority.
+     *
+     * @param line The raw line to send to the IRC server.
+     */
+    public final void sendRawLineViaQueue(String line) {
+        sendRawLineViaQueue(line, PRIORITY_CONTROL);
+    }
+
+
+    /**
+     * Sends a raw line through the outgoing message queue.  Lines of
+     * higher priority are always sent before lines of lower priority.
      *
      * @param line The raw line to send to the IRC server.
+     * @param priority One of PRIORITY_CONTROL, PRIORITY_INTERACTIVE or
+     *        PRIORITY_BULK.
      */
-    public final synchronized void sendRawLineViaQueue(String line) {
+    public final void sendRawLineViaQueue(String line, int priority) {
         if (line == null) {
             throw new NullPointerException("Cannot send null messages to server");
         }
+        // The lock must not be held while adding, as the queue may block
+        // until the OutputThread makes room.
         if (isConnected()) {
-            _outQueue.add(line);
+            enqueue(line, priority);
         }
     }
 
@@ -425,7 +522,48 @@ public abstract class PircBot implements ReplyConstants {
      * @see Colors
      */
     public final void sendMessage(String target, String message) {
-        _outQueue.add("PRIVMSG " + target + " :" + message);
+        sendMessage(target, message, PRIORITY_INTERACTIVE);
+    }
+
+
+    /**
+     * Sends a message to a channel or a private message to a user with
+     * the given priority.  Messages of higher priority are always sent
+     * before messages of lower priority.
+     *
+     * @param target The name of the channel or user nick to send to.
+     * @param message The message to send.
+     * @param priority One of PRIORITY_CONTROL, PRIORITY_INTERACTIVE or
+     *        PRIORITY_BULK.
+     *
+     * @see #sendMessage(String, String)
+     */
+    public final void sendMessage(String target, String message, int priority) {
+        queueText("PRIVMSG " + target + " :", message, priority, 0);
+    }
+
+
+    /**
+     * Sends a message to a channel or a private message to a user with
+     * the given priority, dropping it if it is still waiting in the
+     * outgoing message queue after the given time.  This suits replies
+     * that are only worth sending promptly.  If the message is wrapped
+     * over several lines, they are sent or dropped together.
+     *
+     * @param target The name of the channel or user nick to send to.
+     * @param message The message to send.
+     * @param priority One of PRIORITY_CONTROL, PRIORITY_INTERACTIVE or
+     *        PRIORITY_BULK.
+     * @param ttl The number of milliseconds that the message may wait, or
+     *        0 to use the time to live of its priority.
+     *
+     * @see #setMessageTimeToLive(int, long)
+     */
+    public final void sendMessage(String target, String message, int priority, long ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Cannot have a negative time.");
+        }
+        queueText("PRIVMSG " + target + " :", message, priority, ttl);
     }
 
 
@@ -449,7 +587,123 @@ public abstract class PircBot implements ReplyConstants {
      * @param notice The notice to send.
      */
     public final void sendNotice(String target, String notice) {
-        _outQueue.add("NOTICE " + target + " :" + notice);
+        sendNotice(target, notice, PRIORITY_INTERACTIVE);
+    }
+
+
+    /**
+     * Sends a notice to the channel or to a user with the given priority.
+     *
+     * @param target The name of the channel or user nick to send to.
+     * @param notice The notice to send.
+     * @param priority One of PRIORITY_CONTROL, PRIORITY_INTERACTIVE or
+     *        PRIORITY_BULK.
+     */
+    public final void sendNotice(String target, String notice, int priority) {
+        queueText("NOTICE " + target + " :", notice, priority, 0);
+    }
+
+
+    /**
+     * Adds text to the outgoing message queue, wrapped over as many lines
+     * as it takes so that none of it is lost when the server relays it.
+     * Each line must fit in the maximum line length once the server has
+     * added the bot's own prefix (nick, login and host) in front of it,
+     * so the overhead for the command and target is worked out once, and
+     * the text is then measured in a single pass.
+     *
+     * @param command The start of each line, up to and including the
+     *                colon before the text.
+     * @param text The text to send.
+     * @param priority The priority of the lines.
+     * @param ttl The time to live of the text, or 0 to use the time to
+     *            live of its priority.  Every line shares one deadline.
+     */
+    private void queueText(String command, String text, int priority, long ttl) {
+        List lines = _lineSplitter.split(text, getTextLength(command));
+        OutputThread.Deadline deadline = newDeadline((ttl > 0) ? ttl : _timesToLive[priority]);
+        for (int i = 0; i < lines.size(); i++) {
+            enqueue(command + lines.get(i), priority, deadline);
+        }
+    }
+
+
+    /**
+     * Returns how many bytes of text fit in a line that starts with the
+     * given command, once the server has added the bot's own prefix.
+     *
+     * @param command The start of the line, up to and including the
+     *                colon before the text.
+     *
+     * @return The number of bytes available for the text.
+     */
+    final int getTextLength(String command) {
+        LineSplitter splitter = _lineSplitter;
+        String nick = getNick();
+        // ":" nick "!~" login "@" host " " command text "\r\n"
+        int overhead = 1 + splitter.byteLength(nick == null ? "" : nick) + 2 + splitter.byteLength(getLogin())
+                + 1 + MAX_HOST_LENGTH + 1 + splitter.byteLength(command) + 2;
+        return getMaxLineLength() - overhead;
+    }
+
+
+    /**
+     * Adds a line to the outgoing message queue, with a deadline if
+     * lines of its priority have a time to live.
+     *
+     * @param line The raw line.
+     * @param priority The priority of the line.
+     */
+    private void enqueue(String line, int priority) {
+        enqueue(line, priority, newDeadline(_timesToLive[priority]));
+    }
+
+
+    /**
+     * Returns a deadline for a message with the given time to live.
+     *
+     * @param ttl The number of milliseconds that the message may wait,
+     *            or 0 for no limit.
+     *
+     * @return The deadline, or null if there is no limit.
+     */
+    private static OutputThread.Deadline newDeadline(long ttl) {
+        return (ttl > 0) ? new OutputThread.Deadline(ttl) : null;
+    }
+
+
+    /**
+     * Adds a line to the outgoing message queue.
+     *
+     * @param line The raw line.
+     * @param priority The priority of the line.
+     * @param deadline The deadline of the message that the line is part
+     *                 of, or null if it may wait for ever.
+     */
+    private void enqueue(String line, int priority, OutputThread.Deadline deadline) {
+        // A thread of an EventLoop would wait for itself, or hold up the
+        // bots it shares with the one that empties the queue.
+        boolean mayBlock = !(Thread.currentThread() instanceof EventLoop.Worker);
+        if (deadline != null) {
+            _outQueue.offer(new OutputThread.TimedLine(line, deadline), priority, mayBlock);
+        }
+        else {
+            _outQueue.offer(line, priority, mayBlock);
+        }
+        Connection connection = _connection;
+        if (connection instanceof ChannelConnection) {
+            ((ChannelConnection) connection).wakeOutput();
+        }
+    }
+
+
+    /**
+     * Returns the LineSplitter for the encoding of the current connection.
+     *
+     * @return The LineSplitter used to measure outgoing lines.
+     */
+    final LineSplitter getLineSplitter() {
+        return _lineSplitter;
     }
 
 
@@ -467,7 +721,7 @@ public abstract class PircBot implements ReplyConstants {
      * @param command The CTCP command to send.
      */
     public final void sendCTCPCommand(String target, String command) {
-        _outQueue.add("PRIVMSG " + target + " :\u0001" + command + "\u0001");
+        enqueue("PRIVMSG " + target + " :\u0001" + command + "\u0001", PRIORITY_INTERACTIVE);
     }
 
 
@@ -883,131 +1137,63 @@ public abstract class PircBot implements ReplyConstants {
             return;
         }
 
-        String sourceNick = "";
-        String sourceLogin = "";
-        String sourceHostname = "";
-
-        StringTokenizer tokenizer = new StringTokenizer(line);
-        String senderInfo = tokenizer.nextToken();
-        String command = tokenizer.nextToken();
-        String target = null;
-
-        int exclamation = senderInfo.indexOf("!");
-        int at = senderInfo.indexOf("@");
-        if (senderInfo.startsWith(":")) {
-            if (exclamation > 0 && at > 0 && exclamation < at) {
-                sourceNick = senderInfo.substring(1, exclamation);
-                sourceLogin = senderInfo.substring(exclamation + 1, at);
-                sourceHostname = senderInfo.substring(at + 1);
-            }
-            else {
-
-                if (tokenizer.hasMoreTokens()) {
-                    String token = command;
-
-                    int code = -1;
-                    try {
-                        code = Integer.parseInt(token);
-                    }
-                    catch (NumberFormatException e) {
-                        // Keep the existing value.
-                    }
-
-                    if (code != -1) {
-                        String errorStr = token;
-                        String response = line.substring(line.indexOf(errorStr, senderInfo.length()) + 4, line.length());
-                        this.processServerResponse(code, response);
-                        // Return from the method.
-                        return;
-                    }
-                    else {
-                        // This is not a server response.
-                        // It must be a nick without login and hostname.
-                        // (or maybe a NOTICE or suchlike from the server)
-                        sourceNick = senderInfo;
-                        target = token;
-                    }
-                }
-                else {
-                    // We don't know what this line means.
-                    this.onUnknown(line);
-                    // Return from the method;
-                    return;
-                }
+        IrcMessage message = new IrcMessage(line);
 
-            }
+        if (message.getParamCount() == 0) {
+            // We don't know what this line means.
+            this.onUnknown(line);
+            // Return from the method;
+            return;
         }
 
-        command = command.toUpperCase();
-        if (sourceNick.startsWith(":")) {
-            sourceNick = sourceNick.substring(1);
-        }
-        if (target == null) {
-            target = tokenizer.nextToken();
-        }
-        if (target.startsWith(":")) {
-            target = target.substring(1);
+        if (message.hasPrefix() && !message.hasUserPrefix()) {
+            int code = message.getNumeric();
+            if (code != -1) {
+                this.processServerResponse(code, message);
+                // Return from the method.
+                return;
+            }
+            // This is not a server response.
+            // It must be a nick without login and hostname.
+            // (or maybe a NOTICE or suchlike from the server)
         }
 
-        // Check for CTCP requests.
-        if (command.equals("PRIVMSG") && line.indexOf(":\u0001") > 0 && line.endsWith("\u0001")) {
-            String request = line.substring(line.indexOf(":\u0001") + 2, line.length() - 1);
-            if (request.equals("VERSION")) {
-                // VERSION request
-                this.onVersion(sourceNick, sourceLogin, sourceHostname, target);
-            }
-            else if (request.startsWith("ACTION ")) {
-                // ACTION request
-                this.onAction(sourceNick, sourceLogin, sourceHostname, target, request.substring(7));
-            }
-            else if (request.startsWith("PING ")) {
-                // PING request
-                this.onPing(sourceNick, sourceLogin, sourceHostname, target, request.substring(5));
+        String sourceNick = message.hasUserPrefix() ? message.getNick() : message.getPrefix();
+        String sourceLogin = message.getLogin();
+        String sourceHostname = message.getHostname();
+        String target = message.getParam(0);
+
+        int verb = _verbTable.get(line, message.getCommandStart(), message.getCommandEnd());
+        switch (verb) {
+        case VERB_PRIVMSG:
+            if (isCTCP(message)) {
+                // This is a CTCP request.
+                this.processCTCP(message, sourceNick, sourceLogin, sourceHostname, target);
             }
-            else if (request.equals("TIME")) {
-                // TIME request
-                this.onTime(sourceNick, sourceLogin, sourceHostname, target);
-            }
-            else if (request.equals("FINGER")) {
-                // FINGER request
-                this.onFinger(sourceNick, sourceLogin, sourceHostname, target);
-            }
-            else if ((tokenizer = new StringTokenizer(request)).countTokens() >= 5 && tokenizer.nextToken().equals("DCC")) {
-                // This is a DCC request.
-                boolean success = _dccManager.processRequest(sourceNick, sourceLogin, sourceHostname, request);
-                if (!success) {
-                    // The DccManager didn't know what to do with the line.
-                    this.onUnknown(line);
-                }
+            else if (target.length() > 0 && _channelPrefixes.indexOf(target.charAt(0)) >= 0) {
+                // This is a normal message to a channel.
+                this.onMessage(target, sourceNick, sourceLogin, sourceHostname, message.getParam(1));
             }
             else {
-                // An unknown CTCP message - ignore it.
-                this.onUnknown(line);
+                // This is a private message to us.
+                this.onPrivateMessage(sourceNick, sourceLogin, sourceHostname, message.getParam(1));
             }
-        }
-        else if (command.equals("PRIVMSG") && _channelPrefixes.indexOf(target.charAt(0)) >= 0) {
-            // This is a normal message to a channel.
-            this.onMessage(target, sourceNick, sourceLogin, sourceHostname, line.substring(line.indexOf(" :") + 2));
-        }
-        else if (command.equals("PRIVMSG")) {
-            // This is a private message to us.
-            this.onPrivateMessage(sourceNick, sourceLogin, sourceHostname, line.substring(line.indexOf(" :") + 2));
-        }
-        else if (command.equals("JOIN")) {
+            break;
+        case VERB_JOIN:
             // Someone is joining a channel.
             String channel = target;
             this.addUser(channel, new User("", sourceNick));
             this.onJoin(channel, sourceNick, sourceLogin, sourceHostname);
-        }
-        else if (command.equals("PART")) {
+            break;
+        case VERB_PART:
             // Someone is parting from a channel.
             this.removeUser(target, sourceNick);
             if (sourceNick.equals(this.getNick())) {
                 this.removeChannel(target);
             }
             this.onPart(target, sourceNick, sourceLogin, sourceHostname);
-        }
-        else if (command.equals("NICK")) {
+            break;
+        case VERB_NICK:
             // Somebody is changing their nick.
             String newNick = target;
             this.renameUser(sourceNick, newNick);
@@ -1016,12 +1202,12 @@ public abstract class PircBot implements ReplyConstants {
                 this.setNick(newNick);
             }
             this.onNickChange(sourceNick, sourceLogin, sourceHostname, newNick);
-        }
-        else if (command.equals("NOTICE")) {
+            break;
+        case VERB_NOTICE:
             // Someone is sending a notice.
-            this.onNotice(sourceNick, sourceLogin, sourceHostname, target, line.substring(line.indexOf(" :") + 2));
-        }
-        else if (command.equals("QUIT")) {
+            this.onNotice(sourceNick, sourceLogin, sourceHostname, target, message.getParam(1));
+            break;
+        case VERB_QUIT:
             // Someone has quit from the IRC server.
             if (sourceNick.equals(this.getNick())) {
                 this.removeAllChannels();
@@ -1029,39 +1215,107 @@ public abstract class PircBot implements ReplyConstants {
             else {
                 this.removeUser(sourceNick);
             }
-            this.onQuit(sourceNick, sourceLogin, sourceHostname, line.substring(line.indexOf(" :") + 2));
-        }
-        else if (command.equals("KICK")) {
+            this.onQuit(sourceNick, sourceLogin, sourceHostname, target);
+            break;
+        case VERB_KICK:
             // Somebody has been kicked from a channel.
-            String recipient = tokenizer.nextToken();
+            String recipient = message.getParam(1);
             if (recipient.equals(this.getNick())) {
                 this.removeChannel(target);
             }
             this.removeUser(target, recipient);
-            this.onKick(target, sourceNick, sourceLogin, sourceHostname, recipient, line.substring(line.indexOf(" :") + 2));
-        }
-        else if (command.equals("MODE")) {
+            this.onKick(target, sourceNick, sourceLogin, sourceHostname, recipient, message.getParam(2));
+            break;
+        case VERB_MODE:
+            if (message.getParamCount() < 2) {
+                this.onUnknown(line);
+                break;
+            }
             // Somebody is changing the mode on a channel or user.
-            String mode = line.substring(line.indexOf(target, 2) + target.length() + 1);
+            String mode = message.getRawParams(1);
             if (mode.startsWith(":")) {
                 mode = mode.substring(1);
             }
             this.processMode(target, sourceNick, sourceLogin, sourceHostname, mode);
-        }
-        else if (command.equals("TOPIC")) {
+            break;
+        case VERB_TOPIC:
             // Someone is changing the topic.
-            this.onTopic(target, line.substring(line.indexOf(" :") + 2), sourceNick, System.currentTimeMillis(), true);
-        }
-        else if (command.equals("INVITE")) {
+            this.onTopic(target, message.getParam(1), sourceNick, System.currentTimeMillis(), true);
+            break;
+        case VERB_INVITE:
             // Somebody is inviting somebody else into a channel.
-            this.onInvite(target, sourceNick, sourceLogin, sourceHostname, line.substring(line.indexOf(" :") + 2));
+            this.onInvite(target, sourceNick, sourceLogin, sourceHostname, message.getParam(1));
+            break;
+        default:
+            MessageHandler handler = (verb >= 0) ? _verbHandlers[verb - VERB_HANDLERS] : null;
+            if (handler != null) {
+                handler.handleMessage(message);
+            }
+            else {
+                // If we reach this point, then we've found something that the PircBot
+                // Doesn't currently deal with.
+                this.onUnknown(line);
+            }
+        }
+
+    }
+
+
+    /**
+     * Handles a CTCP request, which is a PRIVMSG whose text is enclosed
+     * in \u0001 characters.
+     */
+    private void processCTCP(IrcMessage message, String sourceNick, String sourceLogin, String sourceHostname, String target) {
+        String line = message.getLine();
+        String request = line.substring(message.getParamStart(1) + 1, message.getParamEnd(1) - 1);
+        StringTokenizer tokenizer;
+        if (request.equals("VERSION")) {
+            // VERSION request
+            this.onVersion(sourceNick, sourceLogin, sourceHostname, target);
+        }
+        else if (request.startsWith("ACTION ")) {
+            // ACTION request
+            this.onAction(sourceNick, sourceLogin, sourceHostname, target, request.substring(7));
+        }
+        else if (request.startsWith("PING ")) {
+            // PING request
+            this.onPing(sourceNick, sourceLogin, sourceHostname, target, request.substring(5));
+        }
+        else if (request.equals("TIME")) {
+            // TIME request
+            this.onTime(sourceNick, sourceLogin, sourceHostname, target);
+        }
+        else if (request.equals("FINGER")) {
+            // FINGER request
+            this.onFinger(sourceNick, sourceLogin, sourceHostname, target);
+        }
+        else if ((tokenizer = new StringTokenizer(request)).countTokens() >= 5 && tokenizer.nextToken().equals("DCC")) {
+            // This is a DCC request.
+            boolean success = _dccManager.processRequest(sourceNick, sourceLogin, sourceHostname, request);
+            if (!success) {
+                // The DccManager didn't know what to do with the line.
+                this.onUnknown(line);
+            }
         }
         else {
-            // If we reach this point, then we've found something that the PircBot
-            // Doesn't currently deal with.
+            // An unknown CTCP message - ignore it.
             this.onUnknown(line);
         }
+    }
+
 
+    /**
+     * Returns whether the text of a message is a CTCP request, which is
+     * enclosed in \u0001 characters.
+     */
+    private static boolean isCTCP(IrcMessage message) {
+        if (message.getParamCount() < 2) {
+            return false;
+        }
+        String line = message.getLine();
+        int start = message.getParamStart(1);
+        int end = message.getParamEnd(1);
+        return end - start >= 2 && line.charAt(start) == '\u0001' && line.charAt(end - 1) == '\u0001';
     }
 
 
@@ -1108,48 +1362,42 @@ public abstract class PircBot implements ReplyConstants {
      * of the javadoc generated documenation.
      *
      * @param code The three-digit numerical code for the response.
-     * @param response The full response from the IRC server.
+     * @param message The response from the IRC server.
      */
-    private final void processServerResponse(int code, String response) {
+    private final void processServerResponse(int code, IrcMessage message) {
 
-        if (code == RPL_LIST) {
+        switch (code) {
+        case RPL_LIST: {
             // This is a bit of information about a channel.
-            int firstSpace = response.indexOf(' ');
-            int secondSpace = response.indexOf(' ', firstSpace + 1);
-            int thirdSpace = response.indexOf(' ', secondSpace + 1);
-            int colon = response.indexOf(':');
-            String channel = response.substring(firstSpace + 1, secondSpace);
+            String channel = message.getParam(1);
             int userCount = 0;
             try {
-                userCount = Integer.parseInt(response.substring(secondSpace + 1, thirdSpace));
+                userCount = Integer.parseInt(message.getParam(2));
             }
             catch (NumberFormatException e) {
                 // Stick with the value of zero.
             }
-            String topic = response.substring(colon + 1);
+            String topic = message.getParam(3);
             this.onChannelInfo(channel, userCount, topic);
+            break;
         }
-        else if (code == RPL_TOPIC) {
+        case RPL_TOPIC: {
             // This is topic information about a channel we've just joined.
-            int firstSpace = response.indexOf(' ');
-            int secondSpace = response.indexOf(' ', firstSpace + 1);
-            int colon = response.indexOf(':');
-            String channel = response.substring(firstSpace + 1, secondSpace);
-            String topic = response.substring(colon + 1);
+            String channel = message.getParam(1);
+            String topic = message.getParam(2);
 
             _topics.put(channel, topic);
 
             // For backwards compatibility only - this onTopic method is deprecated.
             this.onTopic(channel, topic);
+            break;
         }
-        else if (code == RPL_TOPICINFO) {
-            StringTokenizer tokenizer = new StringTokenizer(response);
-            tokenizer.nextToken();
-            String channel = tokenizer.nextToken();
-            String setBy = tokenizer.nextToken();
+        case RPL_TOPICINFO: {
+            String channel = message.getParam(1);
+            String setBy = message.getParam(2);
             long date = 0;
             try {
-                date = Long.parseLong(tokenizer.nextToken()) * 1000;
+                date = Long.parseLong(message.getParam(3)) * 1000;
             }
             catch (NumberFormatException e) {
                 // Stick with the default value of zero.
@@ -1159,41 +1407,62 @@ public abstract class PircBot implements ReplyConstants {
             _topics.remove(channel);
 
             this.onTopic(channel, topic, setBy, date, false);
+            break;
         }
-        else if (code == RPL_NAMREPLY) {
+        case RPL_NAMREPLY: {
             // This is a list of nicks in a channel that we've just joined.
-            int channelEndIndex = response.indexOf(" :");
-            String channel = response.substring(response.lastIndexOf(' ', channelEndIndex - 1) + 1, channelEndIndex);
-
-            StringTokenizer tokenizer = new StringTokenizer(response.substring(response.indexOf(" :") + 2));
-            while (tokenizer.hasMoreTokens()) {
-                String nick = tokenizer.nextToken();
-                String prefix = "";
-                if (nick.startsWith("@")) {
-                    // User is an operator in this channel.
-                    prefix = "@";
+            // The channel comes just before the list, after the channel type.
+            int last = message.getParamCount() - 1;
+            String channel = message.getParam(last - 1);
+
+            String line = message.getLine();
+            int end = message.getParamEnd(last);
+            int pos = message.getParamStart(last);
+            while (pos < end) {
+                int space = line.indexOf(' ', pos);
+                if (space < 0 || space > end) {
+                    space = end;
                 }
-                else if (nick.startsWith("+")) {
-                    // User is voiced in this channel.
-                    prefix = "+";
-                }
-                else if (nick.startsWith(".")) {
-                    // Some wibbly status I've never seen before...
-                    prefix = ".";
+                if (space > pos) {
+                    String prefix = "";
+                    char c = line.charAt(pos);
+                    if (c == '@') {
+                        // User is an operator in this channel.
+                        prefix = "@";
+                    }
+                    else if (c == '+') {
+                        // User is voiced in this channel.
+                        prefix = "+";
+                    }
+                    else if (c == '.') {
+                        // Some wibbly status I've never seen before...
+                        prefix = ".";
+                    }
+                    String nick = line.substring(pos + prefix.length(), space);
+                    this.addUser(channel, new User(prefix, nick));
                 }
-                nick = nick.substring(prefix.length());
-                this.addUser(channel, new User(prefix, nick));
+                pos = space + 1;
             }
+            break;
         }
-        else if (code == RPL_ENDOFNAMES) {
+        case RPL_ENDOFNAMES: {
             // This is the end of a NAMES list, so we know that we've got
             // the full list of users in the channel that we just joined.
-            String channel = response.substring(response.indexOf(' ') + 1, response.indexOf(" :"));
+            String channel = message.getParam(1);
             User[] users = this.getUsers(channel);
             this.onUserList(channel, users);
+            break;
+        }
         }
 
-        this.onServerResponse(code, response);
+        if (code < _numericHandlers.length()) {
+            MessageHandler handler = (MessageHandler) _numericHandlers.get(code);
+            if (handler != null) {
+                handler.handleMessage(message);
+            }
+        }
+
+        this.onServerResponse(code, message.getRawParams(0));
     }
 
 
@@ -2324,6 +2593,77 @@ public abstract class PircBot implements ReplyConstants {
     }
 
 
+    /**
+     * Registers a handler for lines with the given command, which the
+     * PircBot would otherwise pass to onUnknown.  This lets subclasses
+     * handle other commands (for example, WALLOPS or the CAP and AUTHENTICATE
+     * commands of newer servers) without overriding handleLine.  Commands
+     * are matched ignoring case.  Registering another handler for the same
+     * command replaces the previous one.
+     *
+     * @param command The command, for example "WALLOPS".
+     * @param handler The handler, or null to send the command to onUnknown
+     *                again.
+     *
+     * @throws IllegalArgumentException if the command is empty, contains a
+     *         space, or is one that the PircBot handles itself.
+     */
+    protected final void addMessageHandler(String command, MessageHandler handler) {
+        if (command.length() == 0 || command.indexOf(' ') >= 0) {
+            throw new IllegalArgumentException("Not a valid command: " + command);
+        }
+        synchronized (_handlerLock) {
+            int verb = _verbTable.get(command, 0, command.length());
+            if (verb >= 0 && verb < VERB_HANDLERS) {
+                throw new IllegalArgumentException("The " + command + " command is handled by the PircBot.");
+            }
+            if (verb >= 0) {
+                MessageHandler[] handlers = (MessageHandler[]) _verbHandlers.clone();
+                handlers[verb - VERB_HANDLERS] = handler;
+                _verbHandlers = handlers;
+            }
+            else if (handler != null) {
+                int count = _verbHandlers.length;
+                MessageHandler[] handlers = new MessageHandler[count + 1];
+                System.arraycopy(_verbHandlers, 0, handlers, 0, count);
+                handlers[count] = handler;
+                String[] verbs = new String[VERB_HANDLERS + count + 1];
+                System.arraycopy(_tableVerbs, 0, verbs, 0, _tableVerbs.length);
+                verbs[VERB_HANDLERS + count] = command.toUpperCase();
+                int[] values = new int[verbs.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = i;
+                }
+                // The handler must be in place before the table can find it.
+                _verbHandlers = handlers;
+                _tableVerbs = verbs;
+                _verbTable = new VerbTable(verbs, values);
+            }
+        }
+    }
+
+
+    /**
+     * Registers a handler for a numeric reply from the server.  The handler
+     * is called after the PircBot has processed the reply itself, and
+     * before onServerResponse.  Registering another handler for the same
+     * code replaces the previous one.
+     *
+     * @param code The three-digit code of the reply.
+     * @param handler The handler, or null to remove the handler.
+     *
+     * @throws IllegalArgumentException if the code is not between 0 and 999.
+     *
+     * @see ReplyConstants
+     */
+    protected final void addMessageHandler(int code, MessageHandler handler) {
+        if (code < 0 || code >= _numericHandlers.length()) {
+            throw new IllegalArgumentException("Not a valid numeric reply: " + code);
+        }
+        _numericHandlers.set(code, handler);
+    }
+
+
     /**
      * Sets the verbose mode. If verbose mode is set to true, then log entries
      * will be printed to the standard output. The default value is false and
@@ -2337,6 +2677,115 @@ public abstract class PircBot implements ReplyConstants {
     }
 
 
+    /**
+     * Sets whether new threads started by the bot (for example, to handle
+     * DCC chats and file transfers) should be virtual threads rather than
+     * platform threads.  Virtual threads are cheap enough that a large
+     * number of them may block at once without tying up an OS thread
+     * each.  The default value is false.
+     *  <p>
+     * Virtual threads are only available on Java 21 or later.
+     *
+     * @param virtualThreads true if virtual threads are to be used.
+     *
+     * @throws UnsupportedOperationException if virtual threads are requested
+     *         but are not available in this JVM.
+     */
+    public final void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && _startVirtualThread == null) {
+            throw new UnsupportedOperationException("Virtual threads are not available in this JVM.");
+        }
+        _virtualThreads = virtualThreads;
+    }
+
+
+    /**
+     * Returns whether new threads started by the bot are virtual threads.
+     *
+     * @return true if virtual threads are being used.
+     */
+    public final boolean isUsingVirtualThreads() {
+        return _virtualThreads;
+    }
+
+
+    /**
+     * Sets the EventLoop that looks after the connection of this bot.
+     * With an EventLoop, the bot has no InputThread or OutputThread of its
+     * own; a thread of the EventLoop, shared with other bots, reads the
+     * lines from the server and sends the lines in the outgoing message
+     * queue instead.  The onXxx methods (apart from onDisconnect) are then
+     * called on that thread, so they must not block.  By default, the bot
+     * has no EventLoop.
+     *  <p>
+     * This can only be changed before the bot first connects.
+     *
+     * @param eventLoop The EventLoop to use, or null for threads of the
+     *                  bot's own.
+     *
+     * @throws IllegalStateException if the bot has already connected.
+     *
+     * @see EventLoop
+     */
+    public final synchronized void setEventLoop(EventLoop eventLoop) {
+        if (_outputThread != null) {
+            throw new IllegalStateException("The event loop cannot be changed after connecting.");
+        }
+        _eventLoop = eventLoop;
+    }
+
+
+    /**
+     * Returns the EventLoop that looks after the connection of this bot.
+     *
+     * @return The EventLoop, or null if the bot has threads of its own.
+     */
+    public final synchronized EventLoop getEventLoop() {
+        return _eventLoop;
+    }
+
+
+    /**
+     * Sends the lines from the outgoing message queue that the flood
+     * control allows right now.  This is called by the EventLoop, if the
+     * bot has one, in place of the OutputThread running.
+     *
+     * @return The number of nanoseconds after which this should be called
+     *         again, or -1 if there are no lines waiting.
+     */
+    final long pumpOutput() {
+        OutputThread outputThread = _outputThread;
+        return (outputThread == null) ? -1 : outputThread.pump();
+    }
+
+
+    /**
+     * Starts a new thread to run the given task.  This is used for
+     * DCC chats and file transfers, and is also available to subclasses
+     * that need to run work off the input thread.  The thread will be a
+     * virtual thread if virtual threads have been enabled with the
+     * setVirtualThreads method, or a platform thread otherwise.
+     *
+     * @param task The task to run.
+     *
+     * @return The thread that was started.
+     */
+    protected final Thread startThread(Runnable task) {
+        if (_virtualThreads) {
+            try {
+                return (Thread) _startVirtualThread.invoke(null, new Object[] {task});
+            }
+            catch (Exception e) {
+                // Should not happen, but fall back to a platform thread.
+                this.log("*** Could not start virtual thread: " + e);
+            }
+        }
+        Thread thread = new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+
     /**
      * Sets the name of the bot, which will be used as its nick when it
      * tries to join an IRC server.  This should be set before joining
@@ -2464,8 +2913,8 @@ public abstract class PircBot implements ReplyConstants {
      *
      * @return True if and only if the PircBot is currently connected to a server.
      */
-    public final synchronized boolean isConnected() {
-        return _inputThread != null && _inputThread.isConnected();
+    public final boolean isConnected() {
+        return getConnection() != null;
     }
 
 
@@ -2477,15 +2926,15 @@ public abstract class PircBot implements ReplyConstants {
      * prevent your bot from spamming servers and facing the subsequent
      * wrath!  However, if you do need to change this delay value (<b>not
      * recommended</b>), then this is the method to use.
+     *  <p>
+     * After the bot has been idle, a short burst of messages may be sent
+     * without any delay; see setMessageBurst.
      *
      * @param delay The number of milliseconds between each outgoing message.
      *
      */
     public final void setMessageDelay(long delay) {
-        if (delay < 0) {
-            throw new IllegalArgumentException("Cannot have a negative time.");
-        }
-        _messageDelay = delay;
+        _floodControl.setRate(_floodControl.getBurst(), delay);
     }
 
 
@@ -2496,7 +2945,60 @@ public abstract class PircBot implements ReplyConstants {
      * @return Number of milliseconds.
      */
     public final long getMessageDelay() {
-        return _messageDelay;
+        return _floodControl.getInterval();
+    }
+
+
+    /**
+     * Sets the number of messages that may be sent to the server at once
+     * after the bot has been idle.  Each message uses up one of these, and
+     * one more becomes available every message delay.  This has a default
+     * value of 4.  Setting it to 1 delays every message after the first,
+     * much as older versions of PircBot did.
+     *
+     * @param burst The number of messages that may be sent at once.
+     *
+     * @see #setMessageDelay(long)
+     */
+    public final void setMessageBurst(int burst) {
+        _floodControl.setRate(burst, _floodControl.getInterval());
+    }
+
+
+    /**
+     * Returns the number of messages that may be sent to the server at
+     * once after the bot has been idle.
+     *
+     * @return The number of messages.
+     */
+    public final int getMessageBurst() {
+        return _floodControl.getBurst();
+    }
+
+
+    /**
+     * Limits the number of bytes sent to the server, in addition to the
+     * number of messages.  Some servers meter clients by the amount of
+     * data they send rather than by the number of lines.  By default,
+     * bytes are not limited.
+     *
+     * @param burstBytes The number of bytes that may be sent at once.
+     * @param bytesPerSecond The number of bytes allowed each second,
+     *        or 0 to stop limiting bytes.
+     */
+    public final void setMessageByteRate(int burstBytes, int bytesPerSecond) {
+        _floodControl.setByteRate(burstBytes, bytesPerSecond);
+    }
+
+
+    /**
+     * Returns the token bucket that paces the messages sent from the
+     * outgoing message queue.
+     *
+     * @return The flood control for the outgoing message queue.
+     */
+    TokenBucket getFloodControl() {
+        return _floodControl;
     }
 
 
@@ -2514,6 +3016,57 @@ public abstract class PircBot implements ReplyConstants {
     }
 
 
+    /**
+     * Sets the maximum length, in bytes, of a line received from the IRC
+     * server, not counting the \r\n at the end.  Longer lines are dropped
+     * without being decoded or passed to handleLine, so that a faulty or
+     * malicious server cannot use up memory by never ending a line.  The
+     * default of 8192 bytes is well beyond the 512 bytes that the IRC RFC
+     * allows, to make room for servers that add more (such as message
+     * tags).
+     *
+     * @param maxLength The maximum length of an incoming line.
+     *
+     * @throws IllegalArgumentException if the length is not positive.
+     */
+    public final void setMaxIncomingLineLength(int maxLength) {
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("The maximum line length must be positive.");
+        }
+        _maxIncomingLineLength = maxLength;
+    }
+
+
+    /**
+     * Gets the maximum length, in bytes, of a line received from the IRC
+     * server, not counting the \r\n at the end.
+     *
+     * @return The maximum length of an incoming line.
+     */
+    public final int getMaxIncomingLineLength() {
+        return _maxIncomingLineLength;
+    }
+
+
+    /**
+     * Gets the number of lines from the IRC server that have been dropped
+     * because they were longer than the maximum incoming line length.
+     *
+     * @return The number of dropped lines.
+     */
+    public final long getIncomingDroppedCount() {
+        return _incomingDropped.get();
+    }
+
+
+    /**
+     * Counts an incoming line that was dropped because it was too long.
+     */
+    final void countIncomingDropped() {
+        _incomingDropped.incrementAndGet();
+    }
+
+
     /**
      * Gets the number of lines currently waiting in the outgoing message Queue.
      * If this returns 0, then the Queue is empty and any new message is likely
@@ -2524,7 +3077,242 @@ public abstract class PircBot implements ReplyConstants {
      * @return The number of lines in the outgoing message Queue.
      */
     public final int getOutgoingQueueSize() {
-        return _outQueue.size();
+        OutputThread outputThread = _outputThread;
+        int scheduled = (outputThread == null) ? 0 : outputThread.getScheduledSize(-1);
+        return _outQueue.size() + scheduled;
+    }
+
+
+    /**
+     * Gets the number of lines of the given priority currently waiting
+     * in the outgoing message Queue.
+     *
+     * @param priority One of PRIORITY_CONTROL, PRIORITY_INTERACTIVE or
+     *        PRIORITY_BULK.
+     *
+     * @return The number of lines of that priority in the outgoing message Queue.
+     */
+    public final int getOutgoingQueueSize(int priority) {
+        OutputThread outputThread = _outputThread;
+        int scheduled = (outputThread == null) ? 0 : outputThread.getScheduledSize(priority);
+        return _outQueue.size(priority) + scheduled;
+    }
+
+
+    /**
+     * Sets the capacity of the outgoing message Queue and what happens
+     * when a message is sent while it is full: the new message may be
+     * dropped (Queue.OVERFLOW_DROP_NEWEST, the default), the oldest waiting
+     * message may be dropped (Queue.OVERFLOW_DROP_OLDEST), or the sending
+     * thread may block until there is room (Queue.OVERFLOW_BLOCK).
+     *  <p>
+     * Blocking loses nothing, but if a message is sent from the thread that
+     * reads from the server while the Queue is full, that thread stops
+     * answering the server's PINGs, and the bot may be disconnected.  A
+     * thread of an EventLoop never blocks: sending a message from it
+     * while the Queue is full throws an IllegalStateException instead.
+     * Dropped messages are counted by getOutgoingQueueDropped.
+     *  <p>
+     * The capacity applies to each priority separately.  It can only be
+     * changed before the bot first connects,
+     * but the overflow policy may be changed at any time.  Lines already
+     * waiting that do not fit in the new capacity are dropped.
+     *
+     * @param capacity The maximum number of lines waiting to be sent.
+     * @param overflowPolicy What to do when the Queue is full.
+     *
+     * @throws IllegalStateException if the capacity is changed after the
+     *         bot has connected.
+     * @throws IllegalArgumentException if the capacity is not positive or
+     *         the overflow policy is not recognised.
+     *
+     * @see Queue
+     */
+    public final synchronized void setOutgoingQueueCapacity(int capacity, int overflowPolicy) {
+        if (capacity == _outQueue.getCapacity()) {
+            _outQueue.setOverflowPolicy(overflowPolicy);
+            return;
+        }
+        if (_outputThread != null) {
+            throw new IllegalStateException("The outgoing queue capacity cannot be changed after connecting.");
+        }
+        Queue queue = new Queue(_outQueue.getLanes(), capacity, overflowPolicy);
+        // Nothing is taking lines yet, so moving them must not wait for
+        // room; lines that do not fit are dropped and counted.
+        Object line;
+        for (int lane = 0; lane < _outQueue.getLanes(); lane++) {
+            while ((line = _outQueue.poll(lane)) != null) {
+                queue.offerNow(line, lane);
+            }
+        }
+        // The lines added to the front come out most recent first.
+        List front = new ArrayList();
+        while ((line = _outQueue.pollFront()) != null) {
+            front.add(line);
+        }
+        for (int i = front.size() - 1; i >= 0; i--) {
+            queue.addFront(front.get(i));
+        }
+        _outQueue = queue;
+    }
+
+
+    /**
+     * Sets how long lines of the given priority may wait in the outgoing
+     * message queue.  A line that is still waiting after this time is
+     * dropped rather than sent, since a reply that arrives long after
+     * the command it answers only holds up fresher ones.  By default,
+     * lines of every priority may wait for ever, as the time to live
+     * applies to every message of that priority, including those sent
+     * from onConnect (such as identifying with NickServ) and DCC offers.
+     * To limit only some messages, such as replies to commands, use
+     * sendMessage with a time to live instead.  The change applies to
+     * lines queued afterwards.
+     *
+     * @param priority One of PRIORITY_CONTROL, PRIORITY_INTERACTIVE or
+     *        PRIORITY_BULK.
+     * @param ttl The number of milliseconds that lines may wait, or 0 for
+     *        no limit.
+     */
+    public final void setMessageTimeToLive(int priority, long ttl) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Cannot have a negative time.");
+        }
+        _timesToLive[priority] = ttl;
+    }
+
+
+    /**
+     * Returns how long lines of the given priority may wait in the
+     * outgoing message queue.
+     *
+     * @param priority One of PRIORITY_CONTROL, PRIORITY_INTERACTIVE or
+     *        PRIORITY_BULK.
+     *
+     * @return The number of milliseconds that lines may wait, or 0 if
+     *         there is no limit.
+     */
+    public final long getMessageTimeToLive(int priority) {
+        return _timesToLive[priority];
+    }
+
+
+    /**
+     * Gets the number of lines that have been dropped because they waited
+     * in the outgoing message queue past their time to live.
+     *
+     * @return The number of expired lines.
+     */
+    public final long getOutgoingExpiredCount() {
+        return _outgoingExpired.get();
+    }
+
+
+    /**
+     * Counts a line that was dropped because it expired.
+     */
+    final void countExpired() {
+        _outgoingExpired.incrementAndGet();
+    }
+
+
+    /**
+     * Sets the separator used to join messages that are waiting in the
+     * outgoing message queue.  When this is set, a message (or notice)
+     * that is about to be sent has the text of any messages queued right
+     * behind it for the same target and with the same priority joined
+     * onto it, as long as the result still fits in one line.  This saves
+     * flood control for bots that send several short replies at once.
+     * Messages are only joined while they are waiting, so nothing is
+     * delayed in order to be joined.  CTCP messages are never joined.
+     * This is turned off by default.
+     *
+     * @param separator The text to put between joined messages (for
+     *        example, " | "), or null to send each message on its own line.
+     */
+    public final void setMessageCoalescing(String separator) {
+        _coalescingSeparator = separator;
+    }
+
+
+    /**
+     * Returns the separator used to join messages that are waiting in the
+     * outgoing message queue.
+     *
+     * @return The separator, or null if messages are not joined.
+     */
+    public final String getMessageCoalescing() {
+        return _coalescingSeparator;
+    }
+
+
+    /**
+     * Gets the number of lines that were saved by joining messages onto
+     * the messages in front of them.
+     *
+     * @return The number of messages that were joined onto another.
+     */
+    public final long getOutgoingCoalescedCount() {
+        return _outgoingCoalesced.get();
+    }
+
+
+    /**
+     * Counts messages that were joined onto another.
+     *
+     * @param lines The number of messages joined.
+     */
+    final void countCoalesced(int lines) {
+        _outgoingCoalesced.addAndGet(lines);
+    }
+
+
+    /**
+     * Gets the number of lines that have been written to the server since
+     * the bot was created.
+     *
+     * @return The number of lines written.
+     *
+     * @see #getOutgoingFlushCount()
+     */
+    public final long getOutgoingLineCount() {
+        return _outgoingLines.get();
+    }
+
+
+    /**
+     * Gets the number of times that lines have been flushed to the server
+     * since the bot was created.  Each flush usually costs one write to
+     * the socket, so dividing this by getOutgoingLineCount gives the
+     * number of writes per line.  Lines that the flood control allows to
+     * be sent at once are written together with a single flush.
+     *
+     * @return The number of flushes.
+     */
+    public final long getOutgoingFlushCount() {
+        return _outgoingFlushes.get();
+    }
+
+
+    /**
+     * Counts lines that have been written to the server with one flush.
+     *
+     * @param lines The number of lines written.
+     */
+    final void countWrite(int lines) {
+        _outgoingLines.addAndGet(lines);
+        _outgoingFlushes.incrementAndGet();
+    }
+
+
+    /**
+     * Gets the number of lines that have been dropped because the
+     * outgoing message Queue was full.
+     *
+     * @return The number of dropped lines.
+     */
+    public final long getOutgoingQueueDropped() {
+        return _outQueue.getDroppedCount();
     }
 
 
@@ -2662,6 +3450,88 @@ public abstract class PircBot implements ReplyConstants {
         return _charset;
     }
 
+
+    /**
+     * Sets an encoding to fall back on for lines received from the IRC
+     * server that are not valid UTF-8.  When this is set, each line is
+     * decoded on its own, as UTF-8 if it can be and with this encoding
+     * otherwise, rather than decoding everything with the encoding set
+     * with setEncoding.  This suits networks where most clients use UTF-8
+     * but some still use a legacy encoding such as "ISO-8859-1" or
+     * "windows-1252", which would otherwise garble nicks and messages.
+     * The setEncoding method still controls the encoding of lines that
+     * are sent.  If a PircBot is currently connected to a server, then it
+     * must reconnect before this change takes effect.
+     *
+     * @param charset The encoding to fall back on, or null to decode every
+     *                line with the encoding set with setEncoding.
+     *
+     * @throws UnsupportedEncodingException If the named charset is not
+     *                                      supported.
+     */
+    public void setFallbackEncoding(String charset) throws UnsupportedEncodingException {
+        if (charset != null) {
+            // Just try to see if the charset is supported first...
+            "".getBytes(charset);
+        }
+
+        _fallbackCharset = charset;
+    }
+
+
+    /**
+     * Returns the encoding used for received lines that are not valid
+     * UTF-8, or null if not set.
+     *
+     * @return The fallback encoding, or null if not set.
+     */
+    public String getFallbackEncoding() {
+        return _fallbackCharset;
+    }
+
+
+    /**
+     * Gets the number of received lines that were plain ASCII, and so did
+     * not need decoding, while a fallback encoding was set.
+     *
+     * @return The number of ASCII lines.
+     */
+    public final long getIncomingAsciiCount() {
+        return _incomingDecoded.get(LineReader.DECODED_ASCII);
+    }
+
+
+    /**
+     * Gets the number of received lines that were decoded as UTF-8 while
+     * a fallback encoding was set.
+     *
+     * @return The number of UTF-8 lines, not counting plain ASCII lines.
+     */
+    public final long getIncomingUtf8Count() {
+        return _incomingDecoded.get(LineReader.DECODED_UTF8);
+    }
+
+
+    /**
+     * Gets the number of received lines that were not valid UTF-8 and so
+     * were decoded with the fallback encoding.
+     *
+     * @return The number of lines decoded with the fallback encoding.
+     */
+    public final long getIncomingFallbackCount() {
+        return _incomingDecoded.get(LineReader.DECODED_FALLBACK);
+    }
+
+
+    /**
+     * Counts a received line that was decoded in the given way.
+     *
+     * @param path One of the DECODED_ constants of LineReader.
+     */
+    final void countDecoded(int path) {
+        _incomingDecoded.incrementAndGet(path);
+    }
+
     /**
      * Returns the InetAddress used by the PircBot.
      * This can be used to find the I.P. address from which the PircBot is
@@ -2907,7 +3777,7 @@ public abstract class PircBot implements ReplyConstants {
     public synchronized void dispose() {
         //System.out.println("disposing...");
         _outputThread.interrupt();
-        _inputThread.dispose();
+        _ircConnection.dispose();
     }
 
 
@@ -3054,11 +3924,41 @@ public abstract class PircBot implements ReplyConstants {
     }
 
 
+    // Dispatch of incoming lines.  Verbs from VERB_HANDLERS onwards are
+    // those with handlers registered by subclasses.
+    private static final int VERB_PRIVMSG = 0;
+    private static final int VERB_JOIN = 1;
+    private static final int VERB_PART = 2;
+    private static final int VERB_NICK = 3;
+    private static final int VERB_NOTICE = 4;
+    private static final int VERB_QUIT = 5;
+    private static final int VERB_KICK = 6;
+    private static final int VERB_MODE = 7;
+    private static final int VERB_TOPIC = 8;
+    private static final int VERB_INVITE = 9;
+    private static final int VERB_HANDLERS = 10;
+    private static final String[] BUILT_IN_VERBS = {
+        "PRIVMSG", "JOIN", "PART", "NICK", "NOTICE", "QUIT", "KICK", "MODE", "TOPIC", "INVITE"
+    };
+    private final Object _handlerLock = new Object();
+    private String[] _tableVerbs = BUILT_IN_VERBS;
+    private volatile VerbTable _verbTable = new VerbTable(BUILT_IN_VERBS, new int[] {
+        VERB_PRIVMSG, VERB_JOIN, VERB_PART, VERB_NICK, VERB_NOTICE, VERB_QUIT, VERB_KICK, VERB_MODE, VERB_TOPIC, VERB_INVITE
+    });
+    private volatile MessageHandler[] _verbHandlers = new MessageHandler[0];
+    private java.util.concurrent.atomic.AtomicReferenceArray _numericHandlers = new java.util.concurrent.atomic.AtomicReferenceArray(1000);
+
     // Connection stuff.
-    private InputThread _inputThread = null;
-    private OutputThread _outputThread = null;
+    private Connection _ircConnection = null;
+    private volatile Connection _connection = null;
+    private volatile OutputThread _outputThread = null;
+    private EventLoop _eventLoop = null;
     private String _charset = null;
+    private String _fallbackCharset = null;
+    private java.util.concurrent.atomic.AtomicLongArray _incomingDecoded = new java.util.concurrent.atomic.AtomicLongArray(3);
     private InetAddress _inetAddress = null;
+    private volatile int _maxIncomingLineLength = 8192;
+    private java.util.concurrent.atomic.AtomicLong _incomingDropped = new java.util.concurrent.atomic.AtomicLong();
 
     // Details about the last server that we connected to.
     private String _server = null;
@@ -3066,8 +3966,15 @@ public abstract class PircBot implements ReplyConstants {
     private String _password = null;
 
     // Outgoing message stuff.
-    private Queue _outQueue = new Queue();
-    private long _messageDelay = 1000;
+    private volatile Queue _outQueue = new Queue(PRIORITY_BULK + 1, Queue.DEFAULT_CAPACITY, Queue.OVERFLOW_DROP_NEWEST);
+    private TokenBucket _floodControl = new TokenBucket(4, 1000);
+    private LineSplitter _lineSplitter = new LineSplitter(null);
+    private java.util.concurrent.atomic.AtomicLong _outgoingLines = new java.util.concurrent.atomic.AtomicLong();
+    private java.util.concurrent.atomic.AtomicLong _outgoingFlushes = new java.util.concurrent.atomic.AtomicLong();
+    private java.util.concurrent.atomic.AtomicLong _outgoingExpired = new java.util.concurrent.atomic.AtomicLong();
+    private long[] _timesToLive = {0, 0, 0};
+    private volatile String _coalescingSeparator = null;
+    private java.util.concurrent.atomic.AtomicLong _outgoingCoalesced = new java.util.concurrent.atomic.AtomicLong();
 
     // A Hashtable of channels that points to a selfreferential Hashtable of
     // User objects (used to remember which users are in which channels).
@@ -3085,6 +3992,7 @@ public abstract class PircBot implements ReplyConstants {
     // Default settings for the PircBot.
     private boolean _autoNickChange = false;
     private boolean _verbose = false;
+    private boolean _virtualThreads = false;
     private String _name = "PircBot";
     private String _nick = _name;
     private String _login = "PircBot";
@@ -3092,4 +4000,18 @@ public abstract class PircBot implements ReplyConstants {
     private String _finger = "You ought to be arrested for fingering a bot!";
 
     private String _channelPrefixes = "#&+!";
+
+    // Thread.startVirtualThread(Runnable), or null if virtual threads
+    // are not available in this JVM.
+    private static final java.lang.reflect.Method _startVirtualThread;
+    static {
+        java.lang.reflect.Method method = null;
+        try {
+            method = Thread.class.getMethod("startVirtualThread", new Class[] {Runnable.class});
+        }
+        catch (NoSuchMethodException e) {
+            // Virtual threads are not available.
+        }
+        _startVirtualThread = method;
+    }
 }
@@ -14,7 +14,11 @@ found at http://www.jibble.org/licenses/
 
 package org.jibble.pircbot;
 
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Queue is a definition of a data structure that may
@@ -23,12 +27,22 @@ import java.util.Vector;
  * This class is thread safe for multiple producers and a single
  * consumer.  The next() method will block until there is data in
  * the queue.
- *
- * This has now been modified so that it is compatible with
- * the earlier JDK1.1 in order to be suitable for running on
- * mobile appliances.  This means replacing the LinkedList with
- * a Vector, which is hardly ideal, but this Queue is typically
- * only polled every second before dispatching messages.
+ *  <p>
+ * The Queue is bounded.  Objects are held in a ring buffer whose
+ * slots are claimed with compare-and-set operations, so producers do
+ * not contend on a lock, and taking an Object from the front is a
+ * constant-time operation however many are waiting.  What happens when
+ * an Object is added to a full Queue is decided by the overflow policy:
+ * the producer may block until there is room, the new Object may be
+ * dropped, or the oldest Object may be dropped to make room.  By default,
+ * the new Object is dropped, so that adding never blocks, as it never did
+ * when the Queue was unbounded.  Dropped Objects are counted.
+ *  <p>
+ * A Queue may be divided into several priority lanes, each with its own
+ * ring buffer of the same capacity.  Lane 0 has the highest priority:
+ * next() always takes from the highest priority lane that is not empty.
+ * Objects added with addFront are held separately, ahead of every lane,
+ * and do not count towards the capacity, as they are expected to be rare.
  *
  * @author  Paul James Mutton,
  *          <a href="http://www.jibble.org/">http://www.jibble.org/</a>
@@ -38,23 +52,204 @@ public class Queue {
 
 
     /**
-     * Constructs a Queue object of unlimited size.
+     * Overflow policy under which add blocks until there is room
+     * in the Queue.
+     */
+    public static final int OVERFLOW_BLOCK = 0;
+
+    /**
+     * Overflow policy under which an Object added to a full Queue
+     * is dropped.
+     */
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+
+    /**
+     * Overflow policy under which the Object at the front of a full
+     * Queue is dropped to make room for the one being added.
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 2;
+
+    /**
+     * The capacity of a Queue constructed without one.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+
+    /**
+     * Constructs a Queue object with the default capacity, which
+     * drops new Objects when it is full.
      */
     public Queue() {
+        this(1, DEFAULT_CAPACITY, OVERFLOW_DROP_NEWEST);
+    }
+
 
+    /**
+     * Constructs a Queue object with the given capacity and
+     * overflow policy.  The capacity is rounded up to a power of two,
+     * and to at least 2.
+     *
+     * @param capacity The maximum number of Objects in the Queue.
+     * @param overflowPolicy What to do when the Queue is full; one of
+     *        OVERFLOW_BLOCK, OVERFLOW_DROP_NEWEST or OVERFLOW_DROP_OLDEST.
+     *
+     * @throws IllegalArgumentException if the capacity is not positive
+     *         or the overflow policy is not recognised.
+     */
+    public Queue(int capacity, int overflowPolicy) {
+        this(1, capacity, overflowPolicy);
+    }
+
+
+    /**
+     * Constructs a Queue object with the given number of priority lanes,
+     * each with the given capacity, and the given overflow policy.
+     * The capacity is rounded up to a power of two, and to at least 2.
+     *
+     * @param lanes The number of priority lanes.
+     * @param capacity The maximum number of Objects in each lane.
+     * @param overflowPolicy What to do when a lane is full; one of
+     *        OVERFLOW_BLOCK, OVERFLOW_DROP_NEWEST or OVERFLOW_DROP_OLDEST.
+     *
+     * @throws IllegalArgumentException if the number of lanes or the
+     *         capacity is not positive, or the overflow policy is not
+     *         recognised.
+     */
+    public Queue(int lanes, int capacity, int overflowPolicy) {
+        if (lanes <= 0) {
+            throw new IllegalArgumentException("Invalid number of queue lanes: " + lanes);
+        }
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid queue capacity: " + capacity);
+        }
+        setOverflowPolicy(overflowPolicy);
+        // A ring of one slot cannot tell a full slot from an empty one.
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        _lanes = new Ring[lanes];
+        for (int i = 0; i < lanes; i++) {
+            _lanes[i] = new Ring(size);
+        }
     }
 
 
     /**
-     * Adds an Object to the end of the Queue.
+     * Adds an Object to the end of the lowest priority lane of the Queue.
      *
      * @param o The Object to be added to the Queue.
+     *
+     * @see #offer(Object, int)
      */
     public void add(Object o) {
-        synchronized(_queue) {
-            _queue.addElement(o);
-            _queue.notify();
+        offer(o, _lanes.length - 1);
+    }
+
+
+    /**
+     * Adds an Object to the end of a lane of the Queue.
+     *
+     * @param o The Object to be added to the Queue.
+     * @param lane The lane to add it to, where 0 is the highest priority.
+     *
+     * @throws IndexOutOfBoundsException if there is no such lane.
+     *
+     * @see #offer(Object, int)
+     */
+    public void add(Object o, int lane) {
+        offer(o, lane);
+    }
+
+
+    /**
+     * Adds an Object to the end of a lane of the Queue.  If the lane
+     * is full, the overflow policy decides what happens.  If the thread
+     * is interrupted while waiting for room, the Object is dropped.
+     *
+     * @param o The Object to be added to the Queue.
+     * @param lane The lane to add it to, where 0 is the highest priority.
+     *
+     * @return true if the Object was added, false if it was dropped.
+     *
+     * @throws IndexOutOfBoundsException if there is no such lane.
+     */
+    public boolean offer(Object o, int lane) {
+        return offer(o, lane, _overflowPolicy);
+    }
+
+
+    /**
+     * Adds an Object to the end of a lane of the Queue, as offer does,
+     * unless waiting for room would be needed when it is not allowed.
+     *
+     * @param o The Object to be added to the Queue.
+     * @param lane The lane to add it to, where 0 is the highest priority.
+     * @param mayBlock False if the caller must not wait for room, as it
+     *        is the thread that takes Objects from the Queue.
+     *
+     * @return true if the Object was added, false if it was dropped.
+     *
+     * @throws IllegalStateException if the lane is full, the overflow
+     *         policy is OVERFLOW_BLOCK and the caller may not block.
+     */
+    boolean offer(Object o, int lane, boolean mayBlock) {
+        int policy = _overflowPolicy;
+        if (policy == OVERFLOW_BLOCK && !mayBlock) {
+            policy = OVERFLOW_FAIL;
+        }
+        return offer(o, lane, policy);
+    }
+
+
+    /**
+     * Adds an Object to the end of a lane of the Queue without ever
+     * waiting for room.  If the lane is full and the overflow policy is
+     * OVERFLOW_BLOCK, the Object is dropped and counted.
+     *
+     * @param o The Object to be added to the Queue.
+     * @param lane The lane to add it to, where 0 is the highest priority.
+     *
+     * @return true if the Object was added, false if it was dropped.
+     */
+    boolean offerNow(Object o, int lane) {
+        int policy = _overflowPolicy;
+        if (policy == OVERFLOW_BLOCK) {
+            policy = OVERFLOW_DROP_NEWEST;
         }
+        return offer(o, lane, policy);
+    }
+
+
+    /**
+     * Adds an Object to the end of a lane of the Queue, handling a full
+     * lane as the given policy says.
+     */
+    private boolean offer(Object o, int lane, int policy) {
+        Ring ring = _lanes[lane];
+        if (!ring.offer(o)) {
+            switch (policy) {
+                case OVERFLOW_DROP_NEWEST:
+                    _dropped.incrementAndGet();
+                    return false;
+                case OVERFLOW_DROP_OLDEST:
+                    while (!ring.offer(o)) {
+                        if (ring.poll() != null) {
+                            _dropped.incrementAndGet();
+                        }
+                    }
+                    break;
+                case OVERFLOW_FAIL:
+                    throw new IllegalStateException("The queue is full, and waiting would block the thread that empties it.");
+                default:
+                    if (!waitToOffer(ring, o)) {
+                        _dropped.incrementAndGet();
+                        return false;
+                    }
+            }
+        }
+        signal();
+        return true;
     }
 
 
@@ -64,10 +259,11 @@ public class Queue {
      * @param o The Object to be added to the Queue.
      */
     public void addFront(Object o) {
-        synchronized(_queue) {
-            _queue.insertElementAt(o, 0);
-            _queue.notify();
-        }
+        Node node = new Node(o);
+        do {
+            node.next = (Node) _front.get();
+        } while (!_front.compareAndSet(node.next, node));
+        signal();
     }
 
 
@@ -77,30 +273,29 @@ public class Queue {
      * is empty, then this method shall block until there
      * is an Object in the Queue to return.
      *
-     * @return The next item from the front of the queue.
+     * @return The next item from the front of the queue, or null
+     *         if the thread was interrupted while waiting.
      */
     public Object next() {
 
-        Object o = null;
+        Object o = poll();
+        if (o != null) {
+            return o;
+        }
 
         // Block if the Queue is empty.
-        synchronized(_queue) {
-            if (_queue.size() == 0) {
-                try {
-                    _queue.wait();
-                }
-                catch (InterruptedException e) {
-                    return null;
+        synchronized (_lock) {
+            _waiting.incrementAndGet();
+            try {
+                while ((o = poll()) == null) {
+                    _lock.wait();
                 }
             }
-
-            // Return the Object.
-            try {
-                o = _queue.firstElement();
-                _queue.removeElementAt(0);
+            catch (InterruptedException e) {
+                return null;
             }
-            catch (ArrayIndexOutOfBoundsException e) {
-                throw new InternalError("Race hazard in Queue object.");
+            finally {
+                _waiting.decrementAndGet();
             }
         }
 
@@ -108,6 +303,70 @@ public class Queue {
     }
 
 
+    /**
+     * Removes and returns the Object at the front of a lane of the Queue
+     * without blocking.  Objects added with addFront are not included.
+     *
+     * @param lane The lane, where 0 is the highest priority.
+     *
+     * @return The next item from the lane, or null if it is empty.
+     *
+     * @throws IndexOutOfBoundsException if there is no such lane.
+     */
+    public Object poll(int lane) {
+        Object o = _lanes[lane].poll();
+        if (o != null) {
+            signal();
+        }
+        return o;
+    }
+
+
+    /**
+     * Removes and returns the most recent Object added with addFront
+     * without blocking.
+     *
+     * @return The Object, or null if there is none.
+     */
+    public Object pollFront() {
+        Node node;
+        while ((node = (Node) _front.get()) != null) {
+            if (_front.compareAndSet(node, node.next)) {
+                return node.item;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Blocks until the Queue is not empty, without removing anything.
+     *
+     * @return true when the Queue is not empty, or false if the thread
+     *         was interrupted while waiting.
+     */
+    public boolean await() {
+        if (hasNext()) {
+            return true;
+        }
+        synchronized (_lock) {
+            _waiting.incrementAndGet();
+            try {
+                while (!hasNext()) {
+                    _lock.wait();
+                }
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+            finally {
+                _waiting.decrementAndGet();
+            }
+        }
+        return true;
+    }
+
+
     /**
      * Returns true if the Queue is not empty.  If another
      * Thread empties the Queue before <b>next()</b> is
@@ -125,9 +384,13 @@ public class Queue {
      * Clears the contents of the Queue.
      */
     public void clear() {
-        synchronized(_queue) {
-            _queue.removeAllElements();
+        _front.set(null);
+        for (int i = 0; i < _lanes.length; i++) {
+            while (_lanes[i].poll() != null) {
+                // Discard.
+            }
         }
+        signal();
     }
 
 
@@ -137,10 +400,245 @@ public class Queue {
      * @return The current size of the queue.
      */
     public int size() {
-        return _queue.size();
+        int size = 0;
+        for (Node node = (Node) _front.get(); node != null; node = node.next) {
+            size++;
+        }
+        for (int i = 0; i < _lanes.length; i++) {
+            size += _lanes[i].size();
+        }
+        return size;
+    }
+
+
+    /**
+     * Returns the number of Objects waiting in a lane of the Queue,
+     * not counting those added with addFront.
+     *
+     * @param lane The lane, where 0 is the highest priority.
+     *
+     * @return The current size of the lane.
+     *
+     * @throws IndexOutOfBoundsException if there is no such lane.
+     */
+    public int size(int lane) {
+        return _lanes[lane].size();
+    }
+
+
+    /**
+     * Returns the number of priority lanes in the Queue.
+     *
+     * @return The number of lanes.
+     */
+    public int getLanes() {
+        return _lanes.length;
+    }
+
+
+    /**
+     * Returns the maximum number of Objects that may be added to the
+     * end of a lane before it is full.
+     *
+     * @return The capacity of each lane of the Queue.
+     */
+    public int getCapacity() {
+        return _lanes[0].capacity();
+    }
+
+
+    /**
+     * Sets what happens when an Object is added to a full Queue.
+     *
+     * @param overflowPolicy One of OVERFLOW_BLOCK, OVERFLOW_DROP_NEWEST
+     *        or OVERFLOW_DROP_OLDEST.
+     *
+     * @throws IllegalArgumentException if the overflow policy is not recognised.
+     */
+    public void setOverflowPolicy(int overflowPolicy) {
+        if (overflowPolicy != OVERFLOW_BLOCK && overflowPolicy != OVERFLOW_DROP_NEWEST
+                && overflowPolicy != OVERFLOW_DROP_OLDEST) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+        }
+        _overflowPolicy = overflowPolicy;
+    }
+
+
+    /**
+     * Returns what happens when an Object is added to a full Queue.
+     *
+     * @return One of OVERFLOW_BLOCK, OVERFLOW_DROP_NEWEST or OVERFLOW_DROP_OLDEST.
+     */
+    public int getOverflowPolicy() {
+        return _overflowPolicy;
+    }
+
+
+    /**
+     * Returns the number of Objects that have been dropped because
+     * the Queue was full.
+     *
+     * @return The number of dropped Objects.
+     */
+    public long getDroppedCount() {
+        return _dropped.get();
+    }
+
+
+    /**
+     * Waits until an Object can be added to the end of a ring buffer.
+     */
+    private boolean waitToOffer(Ring ring, Object o) {
+        synchronized (_lock) {
+            _waiting.incrementAndGet();
+            try {
+                while (!ring.offer(o)) {
+                    _lock.wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally {
+                _waiting.decrementAndGet();
+            }
+        }
+        return true;
     }
 
 
-    private Vector _queue = new Vector();
+    /**
+     * Removes the Object at the front of the Queue without blocking,
+     * or returns null if there is none.
+     */
+    private Object poll() {
+        Object front = pollFront();
+        if (front != null) {
+            return front;
+        }
+        for (int i = 0; i < _lanes.length; i++) {
+            Object o = _lanes[i].poll();
+            if (o != null) {
+                // There is now room for any producer waiting.
+                signal();
+                return o;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Wakes any threads waiting for the Queue to change.  The lock is
+     * only taken if a thread is actually waiting.
+     */
+    private void signal() {
+        if (_waiting.get() > 0) {
+            synchronized (_lock) {
+                _lock.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * A bounded ring buffer for one lane of the Queue.  Each slot has a
+     * sequence number that tells producers and consumers whether it is
+     * free for the position they have reached.
+     */
+    private static class Ring {
+
+        Ring(int size) {
+            _mask = size - 1;
+            _items = new AtomicReferenceArray(size);
+            _sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                _sequences.set(i, i);
+            }
+        }
+
+        boolean offer(Object o) {
+            while (true) {
+                long tail = _tail.get();
+                int index = (int) tail & _mask;
+                long difference = _sequences.get(index) - tail;
+                if (difference == 0) {
+                    if (_tail.compareAndSet(tail, tail + 1)) {
+                        _items.set(index, o);
+                        _sequences.set(index, tail + 1);
+                        return true;
+                    }
+                }
+                else if (difference < 0) {
+                    // Full.
+                    return false;
+                }
+            }
+        }
+
+        Object poll() {
+            while (true) {
+                long head = _head.get();
+                int index = (int) head & _mask;
+                long difference = _sequences.get(index) - (head + 1);
+                if (difference == 0) {
+                    if (_head.compareAndSet(head, head + 1)) {
+                        Object o = _items.get(index);
+                        _items.set(index, null);
+                        _sequences.set(index, head + _mask + 1);
+                        return o;
+                    }
+                }
+                else if (difference < 0) {
+                    // Empty.
+                    return null;
+                }
+            }
+        }
+
+        int size() {
+            long head;
+            long tail;
+            do {
+                head = _head.get();
+                tail = _tail.get();
+            } while (head != _head.get());
+            return (int) Math.max(0, Math.min(tail - head, _mask + 1));
+        }
+
+        int capacity() {
+            return _mask + 1;
+        }
+
+        private final int _mask;
+        private final AtomicReferenceArray _items;
+        private final AtomicLongArray _sequences;
+        private final AtomicLong _head = new AtomicLong();
+        private final AtomicLong _tail = new AtomicLong();
+    }
+
+
+    /**
+     * A node in the stack of Objects added to the front of the Queue.
+     */
+    private static class Node {
+        Node(Object item) {
+            this.item = item;
+        }
+        final Object item;
+        Node next;
+    }
+
+
+    private final Ring[] _lanes;
+    private final AtomicReference _front = new AtomicReference();
+    private final AtomicInteger _waiting = new AtomicInteger();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final Object _lock = new Object();
+    private volatile int _overflowPolicy;
+
+    // Used inside the Queue for a caller that must not wait for room.
+    private static final int OVERFLOW_FAIL = -1;
 
 }
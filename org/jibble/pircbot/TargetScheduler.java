@@ -0,0 +1,202 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Holds the lines that the OutputThread has taken from the outgoing
+ * message Queue but not yet sent, with a separate queue for each target
+ * (the channel or nick that a line is addressed to) in each priority
+ * lane.  Within a lane, the targets take turns, so one busy channel
+ * cannot hold up replies to every other channel and user.
+ *  <p>
+ * Lines are only added and taken by the OutputThread, but the sizes
+ * may be read from any thread.
+ */
+class TargetScheduler {
+
+
+    /**
+     * Constructs a TargetScheduler.
+     *
+     * @param lanes The number of priority lanes.
+     */
+    TargetScheduler(int lanes) {
+        _lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            _lanes[i] = new Lane();
+        }
+        _sizes = new AtomicIntegerArray(lanes);
+    }
+
+
+    /**
+     * Adds a line to the end of the queue for its target.
+     *
+     * @param item The raw line, or a TimedLine holding it.
+     * @param lane The lane, where 0 is the highest priority.
+     */
+    void add(Object item, int lane) {
+        Lane l = _lanes[lane];
+        String target = getTarget(OutputThread.getLine(item));
+        LinkedList lines = (LinkedList) l.queues.get(target);
+        if (lines == null) {
+            lines = new LinkedList();
+            l.queues.put(target, lines);
+            l.turns.addLast(target);
+        }
+        lines.addLast(item);
+        _sizes.incrementAndGet(lane);
+    }
+
+
+    /**
+     * Removes and returns the next line to send: from the highest priority
+     * lane that is not empty, the first line of the target whose turn it is.
+     *
+     * @return The next line (or TimedLine), or null if there are none.
+     */
+    Object next() {
+        for (int i = 0; i < _lanes.length; i++) {
+            Lane l = _lanes[i];
+            if (l.turns.isEmpty()) {
+                continue;
+            }
+            String target = (String) l.turns.removeFirst();
+            LinkedList lines = (LinkedList) l.queues.get(target);
+            Object item = lines.removeFirst();
+            if (lines.isEmpty()) {
+                l.queues.remove(target);
+            }
+            else {
+                l.turns.addLast(target);
+            }
+            _sizes.decrementAndGet(i);
+            _lastLane = i;
+            _lastTarget = target;
+            return item;
+        }
+        _lastTarget = null;
+        return null;
+    }
+
+
+    /**
+     * Returns the next line waiting for the same target, in the same lane,
+     * as the line last returned by next, without removing it.
+     *
+     * @return The following line (or TimedLine), or null if there is none.
+     */
+    Object peekFollowing() {
+        if (_lastTarget == null) {
+            return null;
+        }
+        LinkedList lines = (LinkedList) _lanes[_lastLane].queues.get(_lastTarget);
+        return (lines == null) ? null : lines.getFirst();
+    }
+
+
+    /**
+     * Removes the line returned by peekFollowing.  The target keeps its
+     * place in the turns if it still has lines waiting.
+     */
+    void removeFollowing() {
+        Lane l = _lanes[_lastLane];
+        LinkedList lines = (LinkedList) l.queues.get(_lastTarget);
+        lines.removeFirst();
+        if (lines.isEmpty()) {
+            l.queues.remove(_lastTarget);
+            l.turns.remove(_lastTarget);
+        }
+        _sizes.decrementAndGet(_lastLane);
+    }
+
+
+    /**
+     * Returns the number of lines waiting in a lane.
+     *
+     * @param lane The lane, where 0 is the highest priority.
+     *
+     * @return The number of lines.
+     */
+    int size(int lane) {
+        return _sizes.get(lane);
+    }
+
+
+    /**
+     * Returns the number of lines waiting in every lane.
+     *
+     * @return The number of lines.
+     */
+    int size() {
+        int size = 0;
+        for (int i = 0; i < _lanes.length; i++) {
+            size += _sizes.get(i);
+        }
+        return size;
+    }
+
+
+    /**
+     * Returns the target of a raw line, which is the parameter after the
+     * command, in lower case (ignoring the default locale, so that "#IRC"
+     * and "#irc" are always the same target).  Lines without one share
+     * the empty target.
+     *
+     * @param line The raw line.
+     *
+     * @return The target of the line.
+     */
+    static String getTarget(String line) {
+        int start = line.indexOf(' ');
+        if (start < 0) {
+            return "";
+        }
+        start++;
+        int end = line.indexOf(' ', start);
+        if (end < 0) {
+            end = line.length();
+        }
+        if (start == end || line.charAt(start) == ':') {
+            return "";
+        }
+        return line.substring(start, end).toLowerCase(Locale.ENGLISH);
+    }
+
+
+    /**
+     * The queues for one priority lane.
+     */
+    private static class Lane {
+        // Target name -> LinkedList of lines.
+        final HashMap queues = new HashMap();
+        // Targets with lines waiting, in the order of their turns.
+        final LinkedList turns = new LinkedList();
+    }
+
+
+    private final Lane[] _lanes;
+    private final AtomicIntegerArray _sizes;
+
+    // The lane and target of the line last returned by next.
+    private int _lastLane = 0;
+    private String _lastTarget = null;
+
+}
@@ -0,0 +1,245 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+/**
+ * A token bucket that paces the lines sent to the IRC server.  Up to
+ * a burst of lines may be sent at once after the bot has been idle;
+ * after that, lines are allowed through at one per interval.  A
+ * separate budget of bytes may also be set, for servers that meter
+ * clients by the amount of data rather than the number of lines.
+ *  <p>
+ * The bucket does not sleep by itself.  Instead, reserve returns how
+ * long the caller must wait before sending, so the bucket can be tested
+ * by supplying a Clock that is advanced by hand.
+ */
+public class TokenBucket {
+
+
+    /**
+     * A source of the current time, in nanoseconds from an arbitrary
+     * origin, as with System.nanoTime().
+     */
+    public interface Clock {
+
+        /**
+         * Returns the current time in nanoseconds.
+         *
+         * @return The current time.
+         */
+        long nanoTime();
+
+    }
+
+
+    /**
+     * A Clock that reads System.nanoTime().
+     */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+
+    /**
+     * Constructs a TokenBucket that uses the system clock.
+     *
+     * @param burst The number of lines that may be sent at once.
+     * @param interval The number of milliseconds in which one more
+     *        line is allowed.
+     */
+    public TokenBucket(int burst, long interval) {
+        this(burst, interval, SYSTEM_CLOCK);
+    }
+
+
+    /**
+     * Constructs a TokenBucket.
+     *
+     * @param burst The number of lines that may be sent at once.
+     * @param interval The number of milliseconds in which one more
+     *        line is allowed.
+     * @param clock The clock to read the time from.
+     */
+    public TokenBucket(int burst, long interval, Clock clock) {
+        _clock = clock;
+        setRate(burst, interval);
+        _lineTime = _clock.nanoTime();
+        _byteTime = _lineTime;
+    }
+
+
+    /**
+     * Sets the rate at which lines are allowed.  If the interval is 0,
+     * then lines are not limited.
+     *
+     * @param burst The number of lines that may be sent at once.
+     * @param interval The number of milliseconds in which one more
+     *        line is allowed.
+     *
+     * @throws IllegalArgumentException if the burst is not positive or
+     *         the interval is negative.
+     */
+    public synchronized void setRate(int burst, long interval) {
+        if (burst <= 0) {
+            throw new IllegalArgumentException("Burst must be positive.");
+        }
+        if (interval < 0) {
+            throw new IllegalArgumentException("Cannot have a negative time.");
+        }
+        _burst = burst;
+        _interval = interval;
+        _lineCost = interval * 1000000L;
+    }
+
+
+    /**
+     * Sets the rate at which bytes are allowed.  If the rate is 0, then
+     * bytes are not limited.  A line longer than the burst is still
+     * allowed, once the budget has been refilled completely.
+     *
+     * @param burstBytes The number of bytes that may be sent at once.
+     * @param bytesPerSecond The number of bytes allowed each second.
+     *
+     * @throws IllegalArgumentException if either value is negative, or
+     *         the burst is 0 while the rate is not.
+     */
+    public synchronized void setByteRate(int burstBytes, int bytesPerSecond) {
+        if (burstBytes < 0 || bytesPerSecond < 0 || (burstBytes == 0 && bytesPerSecond != 0)) {
+            throw new IllegalArgumentException("Invalid byte rate.");
+        }
+        _burstBytes = burstBytes;
+        _bytesPerSecond = bytesPerSecond;
+        _byteCost = (bytesPerSecond == 0) ? 0 : 1000000000L / bytesPerSecond;
+    }
+
+
+    /**
+     * Returns the number of lines that may be sent at once.
+     *
+     * @return The burst size in lines.
+     */
+    public synchronized int getBurst() {
+        return _burst;
+    }
+
+
+    /**
+     * Returns the number of milliseconds in which one more line is allowed.
+     *
+     * @return The refill interval.
+     */
+    public synchronized long getInterval() {
+        return _interval;
+    }
+
+
+    /**
+     * Returns the number of bytes that may be sent at once.
+     *
+     * @return The burst size in bytes, or 0 if bytes are not limited.
+     */
+    public synchronized int getBurstBytes() {
+        return _burstBytes;
+    }
+
+
+    /**
+     * Returns the number of bytes allowed each second.
+     *
+     * @return The byte rate, or 0 if bytes are not limited.
+     */
+    public synchronized int getBytesPerSecond() {
+        return _bytesPerSecond;
+    }
+
+
+    /**
+     * Returns true if bytes are limited as well as lines, in which case
+     * callers should pass the real size of each line to reserve.
+     *
+     * @return True if a byte rate is set.
+     */
+    public synchronized boolean isByteLimited() {
+        return _byteCost != 0;
+    }
+
+
+    /**
+     * Returns how long the caller must wait before a line of the given
+     * size could be sent, without reserving anything.
+     *
+     * @param bytes The size of the line in bytes, or 0 to only check
+     *        that the byte budget is not overdrawn.
+     *
+     * @return The time to wait, in nanoseconds.
+     */
+    public synchronized long getDelay(int bytes) {
+        long now = _clock.nanoTime();
+        return start(now, bytes) - now;
+    }
+
+
+    /**
+     * Reserves the right to send a line of the given size, and returns
+     * how long the caller must wait before sending it.  Lines reserved
+     * later are always allowed after earlier ones.
+     *
+     * @param bytes The size of the line in bytes, including the
+     *        trailing CR LF.
+     *
+     * @return The time to wait, in nanoseconds.
+     */
+    public synchronized long reserve(int bytes) {
+        long now = _clock.nanoTime();
+        long start = start(now, bytes);
+        _lineTime = Math.max(_lineTime, start) + _lineCost;
+        _byteTime = Math.max(_byteTime, start) + bytes * _byteCost;
+        return start - now;
+    }
+
+
+    /**
+     * Works out the earliest time at which a line of the given size may
+     * be sent.  Each budget is tracked as the time at which it would be
+     * full again if nothing more were sent; a line fits once that time,
+     * plus the cost of the line, is within the burst of the present.
+     */
+    private long start(long now, int bytes) {
+        long start = now;
+        if (_lineCost != 0) {
+            start = Math.max(start, _lineTime - (_burst - 1) * _lineCost);
+        }
+        if (_byteCost != 0) {
+            // A line larger than the burst waits for the whole budget.
+            bytes = Math.min(bytes, _burstBytes);
+            start = Math.max(start, _byteTime - (_burstBytes - (long) bytes) * _byteCost);
+        }
+        return start;
+    }
+
+
+    private final Clock _clock;
+    private int _burst;
+    private long _interval;
+    private long _lineCost;
+    private long _lineTime;
+    private int _burstBytes = 0;
+    private int _bytesPerSecond = 0;
+    private long _byteCost = 0;
+    private long _byteTime;
+
+}
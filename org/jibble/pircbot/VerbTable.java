@@ -0,0 +1,171 @@
+/*
+Copyright Paul James Mutton, 2001-2009, http://www.jibble.org/
+
+This file is part of PircBot.
+
+This software is dual-licensed, allowing you to choose between the GNU
+General Public License (GPL) and the www.jibble.org Commercial License.
+Since the GPL may be too restrictive for use in a proprietary application,
+a commercial license is also provided. Full license information can be
+found at http://www.jibble.org/licenses/
+
+*/
+
+
+package org.jibble.pircbot;
+
+import java.util.Arrays;
+
+/**
+ * Maps IRC commands (verbs) to numbers for dispatch, ignoring case.
+ * The table is built once for a fixed set of verbs, choosing a size and
+ * hash multiplier for which no two verbs share a slot, so that a lookup
+ * is a single hash of the command, read straight from the line, and
+ * normally a single comparison.  If there is no such size and multiplier
+ * within a few doublings of the smallest size, for example because two
+ * verbs have the same hash, verbs that share a slot take the next free
+ * one instead, and a lookup compares each verb up to the next free slot.
+ *  <p>
+ * A VerbTable cannot be changed once it is built, so it may be shared
+ * between threads.
+ */
+class VerbTable {
+
+
+    /**
+     * Builds a VerbTable.
+     *
+     * @param verbs The verbs, which must be different from each other
+     *              ignoring case.
+     * @param values The value for each verb.
+     */
+    VerbTable(String[] verbs, int[] values) {
+        int size = MIN_SIZE;
+        while (size < verbs.length * 2) {
+            size *= 2;
+        }
+        // No size or multiplier can separate verbs with the same hash.
+        if (!hasSameHashes(verbs)) {
+            int maxSize = Math.min(size << MAX_DOUBLINGS, MAX_SIZE);
+            for (int trySize = size; trySize <= maxSize; trySize *= 2) {
+                for (int i = 0; i < MULTIPLIERS.length; i++) {
+                    if (build(verbs, values, trySize, MULTIPLIERS[i], false)) {
+                        return;
+                    }
+                }
+            }
+        }
+        build(verbs, values, size, MULTIPLIERS[0], true);
+    }
+
+
+    /**
+     * Looks up the verb that occupies part of a string.
+     *
+     * @param s The string holding the verb.
+     * @param start The index at which the verb starts.
+     * @param end The index after the end of the verb.
+     *
+     * @return The value for the verb, or -1 if it is not in the table.
+     */
+    int get(String s, int start, int end) {
+        int slot = slot(hash(s, start, end), _multiplier, _mask);
+        String verb;
+        while ((verb = _verbs[slot]) != null) {
+            if (verb.length() == end - start && s.regionMatches(true, start, verb, 0, verb.length())) {
+                return _values[slot];
+            }
+            slot = (slot + 1) & _mask;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Tries to fill the table with the given size and multiplier.  The
+     * size must be at least twice the number of verbs, so that a lookup
+     * always reaches a free slot.
+     *
+     * @param probe True to put a verb whose slot is taken in the next free
+     *              slot, rather than giving up.
+     *
+     * @return True if every verb got a slot.
+     */
+    private boolean build(String[] verbs, int[] values, int size, int multiplier, boolean probe) {
+        String[] table = new String[size];
+        int[] tableValues = new int[size];
+        for (int i = 0; i < verbs.length; i++) {
+            int slot = slot(hash(verbs[i], 0, verbs[i].length()), multiplier, size - 1);
+            while (table[slot] != null) {
+                if (!probe) {
+                    return false;
+                }
+                slot = (slot + 1) & (size - 1);
+            }
+            table[slot] = verbs[i];
+            tableValues[slot] = values[i];
+        }
+        _verbs = table;
+        _values = tableValues;
+        _multiplier = multiplier;
+        _mask = size - 1;
+        return true;
+    }
+
+
+    /**
+     * Returns true if any two of the verbs have the same hash.
+     */
+    private static boolean hasSameHashes(String[] verbs) {
+        int[] hashes = new int[verbs.length];
+        for (int i = 0; i < verbs.length; i++) {
+            hashes[i] = hash(verbs[i], 0, verbs[i].length());
+        }
+        Arrays.sort(hashes);
+        for (int i = 1; i < hashes.length; i++) {
+            if (hashes[i] == hashes[i - 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Hashes part of a string, treating ASCII letters as upper case.
+     */
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            h = h * 31 + c;
+        }
+        return h;
+    }
+
+
+    /**
+     * Returns the slot for a hash.
+     */
+    private static int slot(int hash, int multiplier, int mask) {
+        return ((hash * multiplier) >>> 16) & mask;
+    }
+
+    private String[] _verbs;
+    private int[] _values;
+    private int _multiplier;
+    private int _mask;
+
+    private static final int MIN_SIZE = 16;
+    // A slot has 16 bits, so a larger table could not spread the verbs out.
+    private static final int MAX_SIZE = 1 << 16;
+    private static final int MAX_DOUBLINGS = 3;
+    private static final int[] MULTIPLIERS = {
+        0x9E3779B1, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F, 0x165667B1,
+        0xD3A2646D, 0xFD7046C5, 0xB55A4F09, 0x7FEB352D, 0x846CA68B
+    };
+
+}
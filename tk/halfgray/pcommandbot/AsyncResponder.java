@@ -0,0 +1,27 @@
+/* Copyright (c) 2015 Jack126Guy. Refer to /LICENSE.txt for details. */
+package tk.halfgray.pcommandbot;
+
+import java.util.concurrent.Future;
+
+/**
+ * {@link Responder} that responds without blocking the thread that reads
+ * messages from the server. The bot calls
+ * {@link #respondAsync(MessageContext, String)} instead of
+ * {@link Responder#respond(String, String, String[], String)}, and
+ * sends the response once it is available. Responses to a message are
+ * still sent in the order in which the commands appear in it.
+ * @see ExecutorResponder
+ * @see PCommandBot#setResponderExecutor(java.util.concurrent.Executor)
+ */
+public interface AsyncResponder extends Responder {
+	/**
+	 * Start responding to a command. This method should return quickly,
+	 * doing any slow work in another thread.
+	 * @param context Context of the message that invoked the command
+	 * @param argument Argument to the command, trimmed
+	 * @return Future holding a response string, or {@code ""}
+	 * to indicate no response
+	 * @see Responder#respond(String, String, String[], String)
+	 */
+	Future<String> respondAsync(MessageContext context, String argument);
+}
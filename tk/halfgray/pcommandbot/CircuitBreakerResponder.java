@@ -0,0 +1,462 @@
+/* Copyright (c) 2015 Jack126Guy. Refer to /LICENSE.txt for details. */
+package tk.halfgray.pcommandbot;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>Responder that guards another responder with a deadline and a
+ * circuit breaker. The responder is run on the bot's responder executor;
+ * if it throws an exception or does not respond before the deadline,
+ * the fallback response is used instead and the failure is counted.</p>
+ * <p>After a number of consecutive failures, the breaker opens: the
+ * responder is not invoked at all, and the fallback response is used
+ * immediately. Once the cooldown has passed, the breaker is half-open,
+ * and a single invocation is allowed through as a trial. If the trial
+ * succeeds, the breaker closes again; otherwise it opens for another
+ * cooldown.</p>
+ * <p>The state of the breakers can be checked with the <i>breakers</i>
+ * subcommand of the core command.</p>
+ * @see CoreCommandResponder
+ * @see PCommandBot#getResponderExecutor()
+ */
+public class CircuitBreakerResponder implements AsyncResponder {
+	/**
+	 * Default deadline in milliseconds
+	 */
+	public static final long DEFAULT_TIMEOUT = 5000;
+
+	/**
+	 * Default number of consecutive failures that opens the breaker
+	 */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+	/**
+	 * Default time in milliseconds for which the breaker stays open
+	 */
+	public static final long DEFAULT_COOLDOWN = 60000;
+
+	/**
+	 * State of a circuit breaker
+	 */
+	public static enum State {
+		/** The responder is invoked normally */
+		CLOSED,
+		/** The responder is not invoked */
+		OPEN,
+		/** A single trial invocation is allowed */
+		HALF_OPEN
+	}
+
+	/**
+	 * Timer thread that gives up on invocations at their deadlines
+	 */
+	private static final ScheduledExecutorService DEADLINES =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CircuitBreakerResponder-deadlines");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/**
+	 * Responder to guard
+	 */
+	private final Responder responder;
+
+	/**
+	 * Deadline for each invocation, in nanoseconds
+	 */
+	private final long timeout;
+
+	/**
+	 * Number of consecutive failures that opens the breaker
+	 */
+	private final int threshold;
+
+	/**
+	 * Time for which the breaker stays open, in nanoseconds
+	 */
+	private final long cooldown;
+
+	/**
+	 * Response used when the responder fails or the breaker is open
+	 */
+	private final String fallback;
+
+	/**
+	 * Current state
+	 */
+	private State state;
+
+	/**
+	 * Whether a trial invocation is in progress while half-open
+	 */
+	private boolean trialpending;
+
+	/**
+	 * Number of consecutive failures
+	 */
+	private int failures;
+
+	/**
+	 * Time (from {@link System#nanoTime()}) at which the breaker opened
+	 */
+	private long openedat;
+
+	/**
+	 * Description of the last failure, or {@code ""} if there was none
+	 */
+	private String lastfailure;
+
+	/**
+	 * Create a new CircuitBreakerResponder with the default settings
+	 * and no fallback response.
+	 * @param r Responder to guard
+	 */
+	public CircuitBreakerResponder(Responder r) {
+		this(r, DEFAULT_TIMEOUT, DEFAULT_FAILURE_THRESHOLD, DEFAULT_COOLDOWN, "");
+	}
+
+	/**
+	 * Create a new CircuitBreakerResponder.
+	 * @param r Responder to guard
+	 * @param timeoutmillis Deadline for each invocation, in milliseconds
+	 * @param failurethreshold Number of consecutive failures that opens the breaker
+	 * @param cooldownmillis Time for which the breaker stays open, in milliseconds
+	 * @param fallbackresponse Response used when the responder fails or the breaker
+	 * is open, or {@code ""} for no response
+	 * @throws IllegalArgumentException If the deadline or threshold is not positive,
+	 * or if the cooldown is negative
+	 */
+	public CircuitBreakerResponder(Responder r, long timeoutmillis, int failurethreshold,
+		long cooldownmillis, String fallbackresponse) {
+		if(timeoutmillis <= 0) {
+			throw new IllegalArgumentException("Timeout must be positive");
+		}
+		if(failurethreshold <= 0) {
+			throw new IllegalArgumentException("Failure threshold must be positive");
+		}
+		if(cooldownmillis < 0) {
+			throw new IllegalArgumentException("Cooldown cannot be negative");
+		}
+		responder = r;
+		timeout = TimeUnit.MILLISECONDS.toNanos(timeoutmillis);
+		threshold = failurethreshold;
+		cooldown = TimeUnit.MILLISECONDS.toNanos(cooldownmillis);
+		fallback = fallbackresponse;
+		state = State.CLOSED;
+		trialpending = false;
+		failures = 0;
+		openedat = 0;
+		lastfailure = "";
+	}
+
+	/**
+	 * Get the responder that is guarded.
+	 * @return Responder that is guarded
+	 */
+	public Responder getResponder() {
+		return responder;
+	}
+
+	/**
+	 * Get the state of the breaker. An open breaker whose cooldown
+	 * has passed is reported as half-open.
+	 * @return Current state
+	 */
+	public synchronized State getState() {
+		if((state == State.OPEN) && (System.nanoTime() - openedat >= cooldown)) {
+			return State.HALF_OPEN;
+		}
+		return state;
+	}
+
+	/**
+	 * Get the number of consecutive failures.
+	 * @return Number of failures since the last success
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return failures;
+	}
+
+	/**
+	 * Get a description of the last failure.
+	 * @return Description of the last failure, or {@code ""} if there was none
+	 */
+	public synchronized String getLastFailure() {
+		return lastfailure;
+	}
+
+	/**
+	 * Get the time remaining until an open breaker becomes half-open.
+	 * @return Remaining time in milliseconds, or 0 if the breaker is not open
+	 */
+	public synchronized long getRemainingCooldown() {
+		if(state != State.OPEN) {
+			return 0;
+		}
+		long remaining = cooldown - (System.nanoTime() - openedat);
+		return (remaining > 0) ? TimeUnit.NANOSECONDS.toMillis(remaining) : 0;
+	}
+
+	/**
+	 * Respond to a command directly. The deadline cannot be enforced here,
+	 * but exceptions are still counted as failures.
+	 */
+	@Override
+	public String respond(String channel, String user, String[] mentions, String argument) {
+		if(!allowInvocation()) {
+			return fallback;
+		}
+		String response;
+		try {
+			response = responder.respond(channel, user, mentions, argument);
+		} catch(RuntimeException e) {
+			recordFailure(e.toString());
+			return fallback;
+		}
+		recordSuccess();
+		return response;
+	}
+
+	@Override
+	public Future<String> respondAsync(final MessageContext context, final String argument) {
+		if(!allowInvocation()) {
+			return new PCommandBot.CompletedResponse(fallback);
+		}
+		GuardedResponse response = new GuardedResponse(new Callable<String>() {
+			@Override
+			public String call() {
+				return PCommandBot.invokeResponder(responder, context, argument);
+			}
+		});
+		response.start(context.getBot().getResponderExecutor());
+		return response;
+	}
+
+	/**
+	 * Check if the responder may be invoked, moving an open breaker
+	 * to half-open if its cooldown has passed.
+	 * @return {@code true} if the responder may be invoked,
+	 * {@code false} if the fallback response should be used
+	 */
+	private synchronized boolean allowInvocation() {
+		if((state == State.OPEN) && (System.nanoTime() - openedat >= cooldown)) {
+			state = State.HALF_OPEN;
+			trialpending = false;
+		}
+		if(state == State.CLOSED) {
+			return true;
+		} else if((state == State.HALF_OPEN) && !trialpending) {
+			trialpending = true;
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Record a successful invocation, closing the breaker.
+	 */
+	private synchronized void recordSuccess() {
+		failures = 0;
+		state = State.CLOSED;
+		trialpending = false;
+	}
+
+	/**
+	 * Record a failed invocation, opening the breaker if the trial failed
+	 * or there have been too many consecutive failures.
+	 * @param description Description of the failure
+	 */
+	private synchronized void recordFailure(String description) {
+		failures++;
+		lastfailure = description;
+		if((state == State.HALF_OPEN) || (failures >= threshold)) {
+			state = State.OPEN;
+			openedat = System.nanoTime();
+		}
+		trialpending = false;
+	}
+
+	/**
+	 * Record an invocation whose response the caller gave up on.
+	 * This says nothing about the responder, so it is not counted
+	 * as a failure, but another trial may be made.
+	 */
+	private synchronized void recordCancellation() {
+		trialpending = false;
+	}
+
+	/**
+	 * Response that gives up at the deadline. The outcome of the invocation
+	 * is recorded as soon as the responder finishes or the deadline passes,
+	 * whether or not the response is ever retrieved.
+	 */
+	private class GuardedResponse implements Future<String>, Runnable {
+		/**
+		 * Task running the responder
+		 */
+		private final FutureTask<String> task;
+
+		/**
+		 * Released once the outcome is recorded
+		 */
+		private final CountDownLatch settled;
+
+		/**
+		 * Timer that gives up at the deadline, or {@code null} if not yet scheduled
+		 */
+		private ScheduledFuture<?> timer;
+
+		/**
+		 * Response after the outcome is recorded
+		 */
+		private String response;
+
+		/**
+		 * Whether the response was cancelled by the caller
+		 */
+		private volatile boolean cancelled;
+
+		/**
+		 * Create a new GuardedResponse.
+		 * @param c Invocation of the responder
+		 */
+		GuardedResponse(Callable<String> c) {
+			task = new FutureTask<String>(c) {
+				@Override
+				protected void done() {
+					settle(false);
+				}
+			};
+			settled = new CountDownLatch(1);
+			timer = null;
+			response = null;
+			cancelled = false;
+		}
+
+		/**
+		 * Start the responder, and the timer for the deadline.
+		 * @param executor Executor on which to run the responder
+		 */
+		void start(java.util.concurrent.Executor executor) {
+			ScheduledFuture<?> t = DEADLINES.schedule(this, timeout, TimeUnit.NANOSECONDS);
+			synchronized(this) {
+				timer = t;
+			}
+			executor.execute(task);
+		}
+
+		/**
+		 * Give up at the deadline.
+		 */
+		@Override
+		public void run() {
+			settle(true);
+		}
+
+		@Override
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+			if(isDone()) {
+				return false;
+			}
+			cancelled = true;
+			if(!task.cancel(mayInterruptIfRunning)) {
+				//The responder has just finished
+				cancelled = false;
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return settled.getCount() == 0;
+		}
+
+		@Override
+		public String get() throws InterruptedException, ExecutionException {
+			settled.await();
+			return getSettled();
+		}
+
+		@Override
+		public String get(long t, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+			if(!settled.await(t, unit)) {
+				throw new TimeoutException();
+			}
+			return getSettled();
+		}
+
+		/**
+		 * Get the response once the outcome is recorded.
+		 * @return Response, or the fallback response if the responder failed
+		 * @throws java.util.concurrent.CancellationException If the caller cancelled the response
+		 */
+		private synchronized String getSettled() {
+			if(cancelled) {
+				throw new java.util.concurrent.CancellationException();
+			}
+			return response;
+		}
+
+		/**
+		 * Record the outcome, unless it has been recorded already.
+		 * @param timedout {@code true} if the deadline has passed,
+		 * {@code false} if the task has finished
+		 */
+		private void settle(boolean timedout) {
+			synchronized(this) {
+				if(isDone()) {
+					return;
+				}
+				if(timedout) {
+					recordFailure("Timed out");
+					response = fallback;
+				} else if(task.isCancelled()) {
+					recordCancellation();
+					response = fallback;
+				} else {
+					try {
+						response = task.get();
+						recordSuccess();
+					} catch(ExecutionException e) {
+						recordFailure(String.valueOf(e.getCause()));
+						response = fallback;
+					} catch(InterruptedException e) {
+						//Cannot happen, as the task has finished
+						Thread.currentThread().interrupt();
+						recordFailure("Interrupted");
+						response = fallback;
+					}
+				}
+				if(timer != null) {
+					timer.cancel(false);
+				}
+				settled.countDown();
+			}
+			if(timedout) {
+				task.cancel(true);
+			}
+		}
+	}
+}
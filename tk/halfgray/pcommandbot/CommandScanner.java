@@ -0,0 +1,277 @@
+/* Copyright (c) 2015 Jack126Guy. Refer to /LICENSE.txt for details. */
+package tk.halfgray.pcommandbot;
+
+/**
+ * <p>Scanner that finds commands in a message. A scanner is built once
+ * for a command prefix and argument terminator, and can then be used
+ * to scan any number of messages with {@link #scan(CharSequence)}.</p>
+ * <p>The scanner finds the same commands as the regular expression
+ * <code>prefix([^\p{javaSpaceChar}\p{javaISOControl}]+?)(whitespace(.*?))?(?:terminator|$)</code>
+ * (with {@link java.util.regex.Pattern#DOTALL}), where "whitespace" is
+ * {@link Utilities#WHITESPACE}, but it does so in a single pass without
+ * backtracking. Only the boundaries of each command are recorded;
+ * no substrings are created.</p>
+ * <p>A scanner is immutable and may be shared between threads,
+ * but each {@link Cursor} is not.</p>
+ */
+public class CommandScanner {
+	/**
+	 * Command prefix
+	 */
+	private final String prefix;
+
+	/**
+	 * Argument terminator, or {@code ""} for none
+	 */
+	private final String terminator;
+
+	/**
+	 * Create a new scanner.
+	 * @param commandPrefix Command prefix, which must not be empty
+	 * @param argumentTerminator Argument terminator, or {@code ""}
+	 * if arguments run to the end of the message
+	 * @throws IllegalArgumentException If the command prefix is empty
+	 */
+	public CommandScanner(String commandPrefix, String argumentTerminator) {
+		if(commandPrefix.isEmpty()) {
+			throw new IllegalArgumentException("Command prefix is empty");
+		}
+		prefix = commandPrefix;
+		terminator = argumentTerminator;
+	}
+
+	/**
+	 * Get the command prefix.
+	 * @return Command prefix
+	 */
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * Get the argument terminator.
+	 * @return Argument terminator, or {@code ""} if none
+	 */
+	public String getTerminator() {
+		return terminator;
+	}
+
+	/**
+	 * Start scanning a message for commands.
+	 * @param input Message text
+	 * @return Cursor positioned before the first command
+	 */
+	public Cursor scan(CharSequence input) {
+		return new Cursor(input);
+	}
+
+	/**
+	 * Position within a message being scanned. Call {@link #find()}
+	 * to advance to each command in turn; the offsets then describe
+	 * the command that was found.
+	 */
+	public class Cursor {
+		/**
+		 * Message text
+		 */
+		private final CharSequence input;
+
+		/**
+		 * Offset at which to resume scanning
+		 */
+		private int position;
+
+		/**
+		 * Boundaries of the current command string
+		 */
+		private int commandstart, commandend;
+
+		/**
+		 * Boundaries of the current argument, or -1 if there is none
+		 */
+		private int argumentstart, argumentend;
+
+		/**
+		 * Create a new cursor at the start of the message.
+		 * @param in Message text
+		 */
+		Cursor(CharSequence in) {
+			input = in;
+			position = 0;
+			commandstart = commandend = argumentstart = argumentend = -1;
+		}
+
+		/**
+		 * Advance to the next command in the message.
+		 * @return {@code true} if another command was found,
+		 * {@code false} if there are no more
+		 */
+		public boolean find() {
+			int last = input.length() - prefix.length();
+			for(int start = position; start < last; start++) {
+				if(regionMatches(start, prefix) && matchAt(start + prefix.length())) {
+					return true;
+				}
+			}
+			position = input.length();
+			commandstart = commandend = argumentstart = argumentend = -1;
+			return false;
+		}
+
+		/**
+		 * Get the offset at which the current command string starts.
+		 * @return Offset of the first character of the command string
+		 */
+		public int getCommandStart() {
+			return commandstart;
+		}
+
+		/**
+		 * Get the offset at which the current command string ends.
+		 * @return Offset after the last character of the command string
+		 */
+		public int getCommandEnd() {
+			return commandend;
+		}
+
+		/**
+		 * Check if the current command has an argument, that is, if
+		 * the command string was followed by whitespace.
+		 * The argument may still be empty.
+		 * @return {@code true} if there is an argument, {@code false} otherwise
+		 */
+		public boolean hasArgument() {
+			return argumentstart >= 0;
+		}
+
+		/**
+		 * Get the offset at which the current argument starts.
+		 * Leading whitespace is not part of the argument.
+		 * @return Offset of the first character of the argument,
+		 * or -1 if there is no argument
+		 */
+		public int getArgumentStart() {
+			return argumentstart;
+		}
+
+		/**
+		 * Get the offset at which the current argument ends.
+		 * @return Offset after the last character of the argument,
+		 * or -1 if there is no argument
+		 */
+		public int getArgumentEnd() {
+			return argumentend;
+		}
+
+		/**
+		 * Get the message being scanned.
+		 * @return Message text
+		 */
+		public CharSequence getInput() {
+			return input;
+		}
+
+		/**
+		 * Attempt to match a command string (and possibly an argument)
+		 * right after a command prefix. On success, the offsets are set and
+		 * the position is moved past the command and any terminator.
+		 * @param start Offset just after the command prefix
+		 * @return {@code true} if a command was matched, {@code false} otherwise
+		 */
+		private boolean matchAt(int start) {
+			int length = input.length();
+			if(start >= length || Utilities.isWhitespace(input.charAt(start))) {
+				return false;
+			}
+			int end = start + Character.charCount(Character.codePointAt(input, start));
+			//The command string extends until whitespace, the terminator,
+			//or the end of the message
+			while(true) {
+				if(end < length && Utilities.isWhitespace(input.charAt(end))) {
+					break;
+				}
+				if(!terminator.isEmpty() && regionMatches(end, terminator)) {
+					setCommand(start, end, -1, -1, end + terminator.length());
+					return true;
+				}
+				if(isEndAnchor(end)) {
+					setCommand(start, end, -1, -1, end);
+					return true;
+				}
+				end += Character.charCount(Character.codePointAt(input, end));
+			}
+			//Whitespace follows: everything up to the terminator (or the end)
+			//is the argument
+			int argstart = end;
+			while(argstart < length && Utilities.isWhitespace(input.charAt(argstart))) {
+				argstart++;
+			}
+			int argend = argstart;
+			while(true) {
+				if(!terminator.isEmpty() && regionMatches(argend, terminator)) {
+					setCommand(start, end, argstart, argend, argend + terminator.length());
+					return true;
+				}
+				if(isEndAnchor(argend)) {
+					setCommand(start, end, argstart, argend, argend);
+					return true;
+				}
+				argend += Character.charCount(Character.codePointAt(input, argend));
+			}
+		}
+
+		/**
+		 * Record the boundaries of a matched command.
+		 */
+		private void setCommand(int cstart, int cend, int astart, int aend, int next) {
+			commandstart = cstart;
+			commandend = cend;
+			argumentstart = astart;
+			argumentend = aend;
+			position = next;
+		}
+
+		/**
+		 * Check if a string occurs in the message at the given offset.
+		 * @param offset Offset in the message
+		 * @param str String to check
+		 * @return {@code true} if the string occurs, {@code false} otherwise
+		 */
+		private boolean regionMatches(int offset, String str) {
+			if(offset + str.length() > input.length()) {
+				return false;
+			}
+			for(int i = 0; i < str.length(); i++) {
+				if(input.charAt(offset + i) != str.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Check if the given offset is at the end of the message, in the
+		 * same sense as the regular expression anchor {@code $}: that is,
+		 * at the very end, or just before a final line terminator.
+		 * @param offset Offset in the message
+		 * @return {@code true} if the offset is at the end,
+		 * {@code false} otherwise
+		 */
+		private boolean isEndAnchor(int offset) {
+			int length = input.length();
+			if(offset == length) {
+				return true;
+			} else if(offset == length - 1) {
+				char c = input.charAt(offset);
+				if(c == '\n') {
+					return (offset == 0) || (input.charAt(offset - 1) != '\r');
+				}
+				return (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029');
+			} else if(offset == length - 2) {
+				return (input.charAt(offset) == '\r') && (input.charAt(offset + 1) == '\n');
+			} else {
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,525 @@
+/* Copyright (c) 2015 Jack126Guy. Refer to /LICENSE.txt for details. */
+package tk.halfgray.pcommandbot;
+
+import java.util.Map;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.ConcurrentModificationException;
+
+/**
+ * <p>{@link Map} of command strings that ignores case. Keys are stored in
+ * lowercase, as converted by {@link Utilities#LOWERCASE}, so this map
+ * behaves like a {@link NormalizedKeyMap} with that normalizer.</p>
+ * <p>In addition, values can be looked up directly from part of a
+ * {@link CharSequence} with {@link #get(CharSequence, int, int)}.
+ * Such lookups (and lookups with {@link String} keys) hash and compare
+ * the characters case-insensitively as they are read, so no lowercase
+ * copy of the key is created. Entries are kept in an open-addressing
+ * table with linear probing.</p>
+ * <p>This map does not permit {@code null} keys.</p>
+ */
+public class CommandTable<V> extends AbstractMap<String, V> {
+	/**
+	 * Initial capacity of the table (must be a power of two)
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Marker for a slot whose entry was removed. This is compared
+	 * by identity, so it cannot be confused with a real key.
+	 */
+	private static final String DELETED = new String("");
+
+	/**
+	 * Keys, in lowercase; {@code null} for empty slots
+	 */
+	private String[] keys;
+
+	/**
+	 * Values corresponding to the keys
+	 */
+	private Object[] values;
+
+	/**
+	 * Number of entries
+	 */
+	private int size;
+
+	/**
+	 * Number of slots that are not empty (entries and removed entries)
+	 */
+	private int used;
+
+	/**
+	 * Number of structural modifications, to detect concurrent modification
+	 */
+	private int modcount;
+
+	/**
+	 * Number of modifications of any kind, including changes of values
+	 */
+	private int version;
+
+	/**
+	 * Entry set view, created when first needed
+	 */
+	private Set<Map.Entry<String, V>> entryset;
+
+	/**
+	 * Create a new empty table.
+	 */
+	public CommandTable() {
+		keys = new String[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		size = 0;
+		used = 0;
+		modcount = 0;
+		version = 0;
+		entryset = null;
+	}
+
+	/**
+	 * Create a new table with the same entries as the given map.
+	 * @param map Map of entries to copy
+	 */
+	public CommandTable(Map<String, ? extends V> map) {
+		this();
+		putAll(map);
+	}
+
+	/**
+	 * Get the value for a command string that is part of a character sequence.
+	 * The command string is compared case-insensitively, and no copy of it
+	 * is made (except in the rare case that it contains characters whose
+	 * lowercase form depends on context).
+	 * @param seq Character sequence containing the command string
+	 * @param start Offset at which the command string starts
+	 * @param end Offset after the last character of the command string
+	 * @return Value mapped to the command string, or {@code null} if there is none
+	 * @throws IndexOutOfBoundsException If the offsets are not within the sequence
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(CharSequence seq, int start, int end) {
+		int index = indexOf(seq, start, end);
+		return (index < 0) ? null : (V) values[index];
+	}
+
+	/**
+	 * Check if there is a value for a command string that is part of a
+	 * character sequence.
+	 * @param seq Character sequence containing the command string
+	 * @param start Offset at which the command string starts
+	 * @param end Offset after the last character of the command string
+	 * @return {@code true} if the command string is mapped,
+	 * {@code false} otherwise
+	 * @throws IndexOutOfBoundsException If the offsets are not within the sequence
+	 * @see #get(CharSequence, int, int)
+	 */
+	public boolean containsKey(CharSequence seq, int start, int end) {
+		return indexOf(seq, start, end) >= 0;
+	}
+
+	/**
+	 * Get the version of this table. The version changes whenever
+	 * the table is modified in any way (including replacing a value),
+	 * so it can be used to tell if anything derived from the table
+	 * is out of date.
+	 * @return Version of this table
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if(key == null) {
+			return false;
+		}
+		CharSequence seq = (key instanceof CharSequence) ? (CharSequence) key : key.toString();
+		return containsKey(seq, 0, seq.length());
+	}
+
+	@Override
+	public V get(Object key) {
+		if(key == null) {
+			return null;
+		}
+		CharSequence seq = (key instanceof CharSequence) ? (CharSequence) key : key.toString();
+		return get(seq, 0, seq.length());
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V put(String key, V value) {
+		if(key == null) {
+			throw new NullPointerException("Null keys are not permitted");
+		}
+		String lckey = key.toLowerCase(Locale.ENGLISH);
+		int hash = lckey.hashCode();
+		int mask = keys.length - 1;
+		int slot = spread(hash) & mask;
+		int free = -1;
+		String current;
+		while((current = keys[slot]) != null) {
+			if(current == DELETED) {
+				if(free < 0) {
+					free = slot;
+				}
+			} else if(current.hashCode() == hash && current.equals(lckey)) {
+				V old = (V) values[slot];
+				values[slot] = value;
+				version++;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if(free >= 0) {
+			//Reuse a removed slot
+			slot = free;
+		} else {
+			used++;
+		}
+		keys[slot] = lckey;
+		values[slot] = value;
+		size++;
+		modcount++;
+		version++;
+		if(used * 4 > keys.length * 3) {
+			rehash();
+		}
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		if(key == null) {
+			return null;
+		}
+		CharSequence seq = (key instanceof CharSequence) ? (CharSequence) key : key.toString();
+		int index = indexOf(seq, 0, seq.length());
+		if(index < 0) {
+			return null;
+		}
+		V old = (V) values[index];
+		removeAt(index);
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		java.util.Arrays.fill(keys, null);
+		java.util.Arrays.fill(values, null);
+		size = 0;
+		used = 0;
+		modcount++;
+		version++;
+	}
+
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		if(entryset == null) {
+			entryset = new EntrySet();
+		}
+		return entryset;
+	}
+
+	/**
+	 * Find the slot holding a command string.
+	 * @param seq Character sequence containing the command string
+	 * @param start Offset at which the command string starts
+	 * @param end Offset after the last character of the command string
+	 * @return Index of the slot, or -1 if the command string is not mapped
+	 */
+	private int indexOf(CharSequence seq, int start, int end) {
+		if(start < 0 || end > seq.length() || start > end) {
+			throw new IndexOutOfBoundsException("Invalid range: "+start+" to "+end);
+		}
+		//Compute the hash code of the lowercase string on the fly
+		int hash = 0;
+		int i = start;
+		int cp, lc;
+		while(i < end) {
+			cp = codePointAt(seq, i, end);
+			if(cp == '\u0130' || cp == '\u03a3') {
+				//Lowercase form depends on context, so let String sort it out
+				return indexOfLowercase(seq.subSequence(start, end).toString().toLowerCase(Locale.ENGLISH));
+			}
+			lc = Character.toLowerCase(cp);
+			if(Character.charCount(lc) == 1) {
+				hash = 31 * hash + lc;
+			} else {
+				hash = 31 * hash + highSurrogate(lc);
+				hash = 31 * hash + lowSurrogate(lc);
+			}
+			i += Character.charCount(cp);
+		}
+		int mask = keys.length - 1;
+		int slot = spread(hash) & mask;
+		String current;
+		while((current = keys[slot]) != null) {
+			if(current != DELETED && current.hashCode() == hash
+				&& equalsLowercase(current, seq, start, end)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the slot holding a command string that is already lowercase.
+	 * @param lckey Command string in lowercase
+	 * @return Index of the slot, or -1 if the command string is not mapped
+	 */
+	private int indexOfLowercase(String lckey) {
+		int hash = lckey.hashCode();
+		int mask = keys.length - 1;
+		int slot = spread(hash) & mask;
+		String current;
+		while((current = keys[slot]) != null) {
+			if(current != DELETED && current.hashCode() == hash && current.equals(lckey)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Check if a lowercase key is equal to part of a character sequence
+	 * once that part is converted to lowercase.
+	 * @param lckey Key in lowercase
+	 * @param seq Character sequence to compare
+	 * @param start Offset at which to start comparing
+	 * @param end Offset at which to stop comparing
+	 * @return {@code true} if equal, {@code false} otherwise
+	 */
+	private static boolean equalsLowercase(String lckey, CharSequence seq, int start, int end) {
+		int j = 0;
+		int keylength = lckey.length();
+		int i = start;
+		int cp, lc;
+		while(i < end) {
+			cp = codePointAt(seq, i, end);
+			lc = Character.toLowerCase(cp);
+			if(Character.charCount(lc) == 1) {
+				if(j >= keylength || lckey.charAt(j) != lc) {
+					return false;
+				}
+				j++;
+			} else {
+				if(j + 1 >= keylength || lckey.charAt(j) != highSurrogate(lc)
+					|| lckey.charAt(j + 1) != lowSurrogate(lc)) {
+					return false;
+				}
+				j += 2;
+			}
+			i += Character.charCount(cp);
+		}
+		return j == keylength;
+	}
+
+	/**
+	 * Get the code point at an offset, without reading past a limit.
+	 */
+	private static int codePointAt(CharSequence seq, int index, int limit) {
+		char c = seq.charAt(index);
+		if(Character.isHighSurrogate(c) && index + 1 < limit) {
+			char d = seq.charAt(index + 1);
+			if(Character.isLowSurrogate(d)) {
+				return Character.toCodePoint(c, d);
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Get the high surrogate for a supplementary code point.
+	 */
+	private static char highSurrogate(int cp) {
+		return (char) ((cp >>> 10) + (Character.MIN_HIGH_SURROGATE - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10)));
+	}
+
+	/**
+	 * Get the low surrogate for a supplementary code point.
+	 */
+	private static char lowSurrogate(int cp) {
+		return (char) ((cp & 0x3ff) + Character.MIN_LOW_SURROGATE);
+	}
+
+	/**
+	 * Spread the bits of a hash code so that the lower bits
+	 * are usable for indexing.
+	 */
+	private static int spread(int hash) {
+		hash *= 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Remove the entry in a slot.
+	 * @param index Index of the slot
+	 */
+	private void removeAt(int index) {
+		keys[index] = DELETED;
+		values[index] = null;
+		size--;
+		modcount++;
+		version++;
+	}
+
+	/**
+	 * Rebuild the table, discarding removed slots and growing if needed.
+	 */
+	private void rehash() {
+		int capacity = INITIAL_CAPACITY;
+		while(size * 2 > capacity) {
+			capacity <<= 1;
+		}
+		String[] oldkeys = keys;
+		Object[] oldvalues = values;
+		keys = new String[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		int slot;
+		for(int i = 0; i < oldkeys.length; i++) {
+			if(oldkeys[i] == null || oldkeys[i] == DELETED) {
+				continue;
+			}
+			slot = spread(oldkeys[i].hashCode()) & mask;
+			while(keys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = oldkeys[i];
+			values[slot] = oldvalues[i];
+		}
+		used = size;
+	}
+
+	/**
+	 * Entry set view backed by the table
+	 */
+	private class EntrySet extends AbstractSet<Map.Entry<String, V>> {
+		@Override
+		public Iterator<Map.Entry<String, V>> iterator() {
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public void clear() {
+			CommandTable.this.clear();
+		}
+	}
+
+	/**
+	 * Iterator over the occupied slots of the table
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, V>> {
+		/**
+		 * Index of the next slot to return, or the table length if there is none
+		 */
+		private int next;
+
+		/**
+		 * Index of the slot last returned, or -1 if it was removed
+		 * or nothing has been returned yet
+		 */
+		private int last;
+
+		/**
+		 * Expected modification count
+		 */
+		private int expectedmodcount;
+
+		EntryIterator() {
+			next = advance(0);
+			last = -1;
+			expectedmodcount = modcount;
+		}
+
+		/**
+		 * Find the next occupied slot.
+		 * @param from Index at which to start looking
+		 * @return Index of the occupied slot, or the table length if there is none
+		 */
+		private int advance(int from) {
+			while(from < keys.length && (keys[from] == null || keys[from] == DELETED)) {
+				from++;
+			}
+			return from;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < keys.length;
+		}
+
+		@Override
+		public Map.Entry<String, V> next() {
+			if(modcount != expectedmodcount) {
+				throw new ConcurrentModificationException();
+			}
+			if(next >= keys.length) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = advance(next + 1);
+			return new Entry(last);
+		}
+
+		@Override
+		public void remove() {
+			if(last < 0) {
+				throw new IllegalStateException();
+			}
+			if(modcount != expectedmodcount) {
+				throw new ConcurrentModificationException();
+			}
+			removeAt(last);
+			last = -1;
+			expectedmodcount = modcount;
+		}
+	}
+
+	/**
+	 * Entry that writes values through to the table
+	 */
+	private class Entry extends AbstractMap.SimpleEntry<String, V> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Index of the slot for this entry
+		 */
+		private final int index;
+
+		@SuppressWarnings("unchecked")
+		Entry(int i) {
+			super(keys[i], (V) values[i]);
+			index = i;
+		}
+
+		@Override
+		public V setValue(V value) {
+			if(keys[index] == getKey()) {
+				values[index] = value;
+				version++;
+			}
+			return super.setValue(value);
+		}
+	}
+}
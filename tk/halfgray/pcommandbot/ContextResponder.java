@@ -0,0 +1,23 @@
+/* Copyright (c) 2015 Jack126Guy. Refer to /LICENSE.txt for details. */
+package tk.halfgray.pcommandbot;
+
+/**
+ * {@link Responder} that receives the circumstances of the original
+ * message as a {@link MessageContext}. The bot calls
+ * {@link #respond(MessageContext, String)} instead of
+ * {@link Responder#respond(String, String, String[], String)}, so
+ * anything the responder does not use (such as the mentioned nicks)
+ * need not be computed.
+ */
+public interface ContextResponder extends Responder {
+	/**
+	 * Respond to a command. For public messages, the users mentioned
+	 * in the original message will be mentioned in the response automatically.
+	 * @param context Context of the message that invoked the command
+	 * @param argument Argument to the command, trimmed
+	 * @return A response string, or {@code ""}
+	 * to indicate no response (not recommended in most cases)
+	 * @see Responder#respond(String, String, String[], String)
+	 */
+	String respond(MessageContext context, String argument);
+}
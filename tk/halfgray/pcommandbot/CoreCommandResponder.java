@@ -18,6 +18,8 @@ import java.util.Locale;
  * <li><i>part</i>: Part a channel. Requires authentication.</li>
  * <li><i>time</i>: Output the time in UTC as reported by the system.</li>
  * <li><i>echo</i>: Reply with the subargument.</li>
+ * <li><i>breakers</i>: Report the state of the {@link CircuitBreakerResponder}s.
+ * The subargument, if any, is the command whose breaker to report.</li>
  * </ul>
  * </p>
  */
@@ -57,12 +59,20 @@ public class CoreCommandResponder implements Responder {
 
 	@Override
 	public String respond(String channel, String user, String[] mentions, String argument) {
-		String[] parts = Utilities.WHITESPACE.split(argument, 2);
-		String subcommand = parts[0].toLowerCase(java.util.Locale.ENGLISH);
+		//Split at the first run of whitespace
+		int split = Utilities.indexOfWhitespace(argument, 0, argument.length());
+		String subcommand;
+		String subargument;
+		if(split < 0) {
+			subcommand = argument.toLowerCase(java.util.Locale.ENGLISH);
+			subargument = "";
+		} else {
+			subcommand = argument.substring(0, split).toLowerCase(java.util.Locale.ENGLISH);
+			subargument = argument.substring(Utilities.skipWhitespace(argument, split, argument.length()));
+		}
 		if(subcommand.isEmpty()) {
 			return "Core subcommand not specified";
 		}
-		String subargument = parts.length > 1 ? parts[1] : "";
 		if(subcommand.equals("about")) {
 			return ABOUT_STRING;
 		} else if(subcommand.equals("auth")) {
@@ -117,11 +127,61 @@ public class CoreCommandResponder implements Responder {
 			return iso8601ish.format(new java.util.Date());
 		} else if(subcommand.equals("echo")) {
 			return subargument;
+		} else if(subcommand.equals("breakers")) {
+			return describeBreakers(subargument);
 		} else {
 			return "Core subcommand not recognized";
 		}
 	}
 
+	/**
+	 * Describe the state of the circuit breakers guarding the bot's commands.
+	 * Only breakers that are not closed are listed, unless a command is given.
+	 * @param command Command whose breaker to describe, or {@code ""} for all
+	 * @return Description of the breakers
+	 */
+	protected String describeBreakers(String command) {
+		StringBuilder description = new StringBuilder();
+		int count = 0;
+		CircuitBreakerResponder breaker;
+		for(java.util.Map.Entry<String, Responder> entry : bot.getResponders().entrySet()) {
+			if(!(entry.getValue() instanceof CircuitBreakerResponder)) {
+				continue;
+			}
+			if(!command.isEmpty() && !entry.getKey().equalsIgnoreCase(command)) {
+				continue;
+			}
+			count++;
+			breaker = (CircuitBreakerResponder) entry.getValue();
+			CircuitBreakerResponder.State state = breaker.getState();
+			if(command.isEmpty() && (state == CircuitBreakerResponder.State.CLOSED)) {
+				continue;
+			}
+			if(description.length() > 0) {
+				description.append("; ");
+			}
+			description.append(entry.getKey()).append(": ")
+				.append(state.toString().toLowerCase(Locale.ENGLISH).replace('_', '-'));
+			if(breaker.getConsecutiveFailures() > 0) {
+				description.append(", ").append(breaker.getConsecutiveFailures())
+					.append(" failures (last: ").append(breaker.getLastFailure()).append(")");
+			}
+			if(state == CircuitBreakerResponder.State.OPEN) {
+				description.append(", retry in ")
+					.append((breaker.getRemainingCooldown() + 999) / 1000).append(" s");
+			}
+		}
+		if(description.length() > 0) {
+			return description.toString();
+		} else if(!command.isEmpty()) {
+			return "No circuit breaker for "+command;
+		} else if(count > 0) {
+			return "All "+count+" circuit breakers closed";
+		} else {
+			return "No circuit breakers";
+		}
+	}
+
 	/**
 	 * Attempt to authenticate the user. If authentication fails,
 	 * the user who was previously authenticated retains that
@@ -131,7 +191,7 @@ public class CoreCommandResponder implements Responder {
 	 * @return {@code true} if authentication succeeded, {@code false}
 	 * otherwise
 	 */
-	protected boolean authenticate(String user, String pass) {
+	protected synchronized boolean authenticate(String user, String pass) {
 		if(password.equals(pass)) {
 			authenticateduser = user.toLowerCase(Locale.ENGLISH);
 			return true;
@@ -149,7 +209,7 @@ public class CoreCommandResponder implements Responder {
 	 * @return {@code true} if the user is authenticated, {@code false}
 	 * otherwise
 	 */
-	protected boolean isAuthenticated(String user) {
+	protected synchronized boolean isAuthenticated(String user) {
 		if(authenticateduser.equals(user.toLowerCase(Locale.ENGLISH))) {
 			authenticateduser = "";
 			return true;
@@ -0,0 +1,52 @@
+/* Copyright (c) 2015 Jack126Guy. Refer to /LICENSE.txt for details. */
+package tk.halfgray.pcommandbot;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Responder that runs another responder on the bot's responder executor,
+ * so that a slow responder does not block the thread that reads messages
+ * from the server.
+ * @see PCommandBot#getResponderExecutor()
+ */
+public class ExecutorResponder implements AsyncResponder {
+	/**
+	 * Responder to run
+	 */
+	private final Responder responder;
+
+	/**
+	 * Create a new ExecutorResponder.
+	 * @param r Responder to run on the responder executor
+	 */
+	public ExecutorResponder(Responder r) {
+		responder = r;
+	}
+
+	/**
+	 * Get the responder that is run on the responder executor.
+	 * @return Responder that is run
+	 */
+	public Responder getResponder() {
+		return responder;
+	}
+
+	@Override
+	public String respond(String channel, String user, String[] mentions, String argument) {
+		return responder.respond(channel, user, mentions, argument);
+	}
+
+	@Override
+	public Future<String> respondAsync(final MessageContext context, final String argument) {
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			@Override
+			public String call() {
+				return PCommandBot.invokeResponder(responder, context, argument);
+			}
+		});
+		context.getBot().getResponderExecutor().execute(task);
+		return task;
+	}
+}
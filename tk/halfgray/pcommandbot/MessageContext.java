@@ -0,0 +1,154 @@
+/* Copyright (c) 2015 Jack126Guy. Refer to /LICENSE.txt for details. */
+package tk.halfgray.pcommandbot;
+
+import java.util.Locale;
+
+/**
+ * Circumstances of a message that may contain commands. A context is
+ * created for each message, and anything derived from the message
+ * (such as the mentioned nicks) is computed only when first needed,
+ * at most once per message. The bot finds the mentions on the thread
+ * that reads messages before handing the context to any other thread,
+ * as the user lists may only be read from that thread.
+ * @see ContextResponder
+ */
+public class MessageContext {
+	/**
+	 * Bot that received the message
+	 */
+	private final PCommandBot bot;
+
+	/**
+	 * Channel from which the message originated, or {@code null}
+	 * for private messages
+	 */
+	private final String channel;
+
+	/**
+	 * Sender of the message
+	 */
+	private final String sender;
+
+	/**
+	 * Message text
+	 */
+	private final String message;
+
+	/**
+	 * Mentioned nicks, or {@code null} if not yet computed
+	 */
+	private String[] mentions;
+
+	/**
+	 * Mention prefix, or {@code null} if not yet computed
+	 */
+	private String mentionprefix;
+
+	/**
+	 * Nick of the bot in lowercase, or {@code null} if not yet computed
+	 */
+	private String botnick;
+
+	/**
+	 * Create a new context for a message.
+	 * @param b Bot that received the message
+	 * @param chan Channel from which the message originated,
+	 * or {@code null} for private messages
+	 * @param send Sender of the message
+	 * @param msg Message text
+	 */
+	public MessageContext(PCommandBot b, String chan, String send, String msg) {
+		bot = b;
+		channel = chan;
+		sender = send;
+		message = msg;
+		mentions = null;
+		mentionprefix = null;
+		botnick = null;
+	}
+
+	/**
+	 * Get the bot that received the message.
+	 * @return Bot that received the message
+	 */
+	public PCommandBot getBot() {
+		return bot;
+	}
+
+	/**
+	 * Get the channel from which the message originated.
+	 * @return Channel, or {@code null} for private messages
+	 */
+	public String getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Get the sender of the message.
+	 * @return Sender of the message
+	 */
+	public String getSender() {
+		return sender;
+	}
+
+	/**
+	 * Get the message text.
+	 * @return Message text
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Get the nicks mentioned in the message. Private messages
+	 * never mention anyone.
+	 * @return Mentioned nicks, possibly empty
+	 * @see PCommandBot#getMentions(String, String)
+	 */
+	public synchronized String[] getMentions() {
+		if(mentions == null) {
+			if(channel != null) {
+				mentions = bot.getMentions(channel, message);
+			} else {
+				mentions = new String[0];
+			}
+		}
+		return mentions;
+	}
+
+	/**
+	 * Get the prefix that mentions the same nicks as the message.
+	 * @return Mention prefix, or {@code ""} if nobody was mentioned
+	 * @see Utilities#toMentionPrefix(String[])
+	 */
+	public synchronized String getMentionPrefix() {
+		if(mentionprefix == null) {
+			mentionprefix = Utilities.toMentionPrefix(getMentions());
+		}
+		return mentionprefix;
+	}
+
+	/**
+	 * Get the nick of the bot, in lowercase.
+	 * @return Nick of the bot in lowercase
+	 */
+	public synchronized String getBotNick() {
+		if(botnick == null) {
+			botnick = bot.getNick().toLowerCase(Locale.ENGLISH);
+		}
+		return botnick;
+	}
+
+	/**
+	 * Check if the message mentions the bot.
+	 * @return {@code true} if the bot is mentioned, {@code false} otherwise
+	 */
+	public boolean isBotMentioned() {
+		for(String mention : getMentions()) {
+			if(mention.toLowerCase(Locale.ENGLISH).equals(getBotNick())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
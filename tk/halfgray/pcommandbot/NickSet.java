@@ -0,0 +1,69 @@
+/* Copyright (c) 2015 Jack126Guy. Refer to /LICENSE.txt for details. */
+package tk.halfgray.pcommandbot;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * <p>Set of nicks that ignores case, used to track the users in a channel.
+ * Nicks are stored in lowercase, as with {@link CommandTable}.</p>
+ * <p>In addition, a nick can be checked directly from part of a
+ * {@link CharSequence} with {@link #contains(CharSequence, int, int)},
+ * so that the nicks mentioned in a message can be found without
+ * copying each word of the message.</p>
+ */
+public class NickSet extends AbstractSet<String> {
+	/**
+	 * Table holding the nicks. The values are unused.
+	 */
+	private CommandTable<Boolean> nicks;
+
+	/**
+	 * Create a new empty set.
+	 */
+	public NickSet() {
+		nicks = new CommandTable<Boolean>();
+	}
+
+	/**
+	 * Check if a nick that is part of a character sequence is in this set.
+	 * @param seq Character sequence containing the nick
+	 * @param start Offset at which the nick starts
+	 * @param end Offset after the last character of the nick
+	 * @return {@code true} if the nick is in this set, {@code false} otherwise
+	 * @throws IndexOutOfBoundsException If the offsets are not within the sequence
+	 */
+	public boolean contains(CharSequence seq, int start, int end) {
+		return nicks.containsKey(seq, start, end);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return nicks.containsKey(o);
+	}
+
+	@Override
+	public boolean add(String nick) {
+		return nicks.put(nick, Boolean.TRUE) == null;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return nicks.remove(o) != null;
+	}
+
+	@Override
+	public void clear() {
+		nicks.clear();
+	}
+
+	@Override
+	public int size() {
+		return nicks.size();
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		return nicks.keySet().iterator();
+	}
+}
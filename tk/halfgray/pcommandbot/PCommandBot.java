@@ -4,13 +4,16 @@ package tk.halfgray.pcommandbot;
 import org.jibble.pircbot.*;
 import org.json.simple.*;
 import org.json.simple.parser.*;
+import java.io.UnsupportedEncodingException;
 import java.util.List;
 import java.util.Iterator;
 import java.util.Map;
 import tk.halfgray.pcommandbot.NormalizedKeyMap;
 import java.util.Locale;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Bot that responds to commands sent through IRC.
@@ -42,6 +45,36 @@ public class PCommandBot extends PircBot {
 	 */
 	public static final String PCB_VERSION_STRING = "PCommandBot v1.0.3 http://github.com/jack126guy/pcommandbot";
 
+	/**
+	 * Default outgoing queue depth at which the mentioned response and
+	 * default private message are no longer sent
+	 */
+	public static final int DEFAULT_SHEDDING_WATERMARK = 20;
+
+	/**
+	 * Default outgoing queue depth at which only core command responses are kept
+	 */
+	public static final int DEFAULT_CORE_ONLY_WATERMARK = 100;
+
+	/**
+	 * Time in milliseconds after which a response that is still waiting
+	 * to be sent is dropped
+	 */
+	public static final long DEFAULT_RESPONSE_TIME_TO_LIVE = 30000;
+
+	/**
+	 * How the bot is coping with the number of lines waiting to be sent
+	 * @see #getOverloadState()
+	 */
+	public static enum OverloadState {
+		/** All responses are sent */
+		NORMAL,
+		/** The mentioned response and default private message are not sent */
+		SHEDDING,
+		/** Only responses to the core command are sent */
+		CORE_ONLY
+	}
+
 	/**
 	 * Pattern that matches one or more characters not accepted in nicks
 	 * according to RFC 2182
@@ -93,6 +126,12 @@ public class PCommandBot extends PircBot {
 	 */
 	private String argumentterminator;
 
+	/**
+	 * Scanner for finding commands, built from the command prefix
+	 * and argument terminator whenever the configuration changes
+	 */
+	private volatile CommandScanner commandscanner;
+
 	/**
 	 * Default message when messaged privately
 	 */
@@ -113,21 +152,97 @@ public class PCommandBot extends PircBot {
 	 */
 	private Map<String, String[]> syncommands;
 
+	/**
+	 * Synonymous commands compiled into the responders they invoke,
+	 * or {@code null} if they have not been compiled
+	 */
+	private volatile CompiledSynonyms compiledsynonyms;
+
+	/**
+	 * Executor for asynchronous responders and delivery of their responses,
+	 * or {@code null} to use the default
+	 */
+	private volatile Executor responderexecutor;
+
+	/**
+	 * Default executor for asynchronous responders when platform threads are used
+	 */
+	private final Executor defaultexecutor;
+
+	/**
+	 * Default executor for asynchronous responders when virtual threads are used
+	 */
+	private final Executor virtualexecutor;
+
 	/**
 	 * Lists of users. Keys are the channel names,
 	 * and values are the lists.
 	 */
 	private Map<String, java.util.Set<String>> userlists;
 
+	/**
+	 * Messages waiting to be processed on virtual threads, by target.
+	 * A target is present while a thread is processing its messages.
+	 */
+	private final Map<String, java.util.Queue<Runnable>> pendingmessages;
+
+	/**
+	 * Number of messages waiting in {@link #pendingmessages}
+	 */
+	private final java.util.concurrent.atomic.AtomicInteger pendingcount;
+
+	/**
+	 * Current overload state
+	 */
+	private final java.util.concurrent.atomic.AtomicReference<OverloadState> overloadstate;
+
+	/**
+	 * Outgoing queue depths at which the overload states are entered
+	 */
+	private volatile int sheddingwatermark, coreonlywatermark;
+
+	/**
+	 * Number of changes of overload state
+	 */
+	private final java.util.concurrent.atomic.AtomicLong overloadtransitions;
+
+	/**
+	 * Number of responses not sent because of overload
+	 */
+	private final java.util.concurrent.atomic.AtomicLong shedresponses;
+
 	/**
 	 * Create a new instance of this bot.
 	 * Configuration must be loaded using {@link #loadConfiguration(java.io.Reader)}
 	 */
 	public PCommandBot() {
 		super();
-		responders = new NormalizedKeyMap<String, Responder>(Utilities.LOWERCASE);
-		syncommands = new NormalizedKeyMap<String, String[]>(Utilities.LOWERCASE);
+		responders = new CommandTable<Responder>();
+		syncommands = new CommandTable<String[]>();
+		compiledsynonyms = null;
+		responderexecutor = null;
+		defaultexecutor = java.util.concurrent.Executors.newCachedThreadPool(new java.util.concurrent.ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PCommandBot-responder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		virtualexecutor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				startThread(command);
+			}
+		};
 		userlists = new NormalizedKeyMap<String, java.util.Set<String>>(Utilities.LOWERCASE);
+		pendingmessages = new NormalizedKeyMap<String, java.util.Queue<Runnable>>(Utilities.LOWERCASE);
+		pendingcount = new java.util.concurrent.atomic.AtomicInteger();
+		overloadstate = new java.util.concurrent.atomic.AtomicReference<OverloadState>(OverloadState.NORMAL);
+		sheddingwatermark = DEFAULT_SHEDDING_WATERMARK;
+		coreonlywatermark = DEFAULT_CORE_ONLY_WATERMARK;
+		overloadtransitions = new java.util.concurrent.atomic.AtomicLong();
+		shedresponses = new java.util.concurrent.atomic.AtomicLong();
 		setVersion(PCB_VERSION_STRING);
 		config = null;
 		server = "";
@@ -137,6 +252,7 @@ public class PCommandBot extends PircBot {
 		channels = new String[0];
 		commandprefix = DEFAULT_COMMAND_PREFIX;
 		argumentterminator = "";
+		commandscanner = createCommandScanner();
 		defaultprivate = "";
 		mentionedresponse = "";
 		isready = false;
@@ -243,6 +359,7 @@ public class PCommandBot extends PircBot {
 		} else {
 			argumentterminator = "";
 		}
+		commandscanner = createCommandScanner();
 
 		if(config.get("default_private") instanceof String) {
 			defaultprivate = Utilities.supertrim((String) config.get("default_private"));
@@ -256,6 +373,34 @@ public class PCommandBot extends PircBot {
 			mentionedresponse = "";
 		}
 
+		//Whitespace is kept, since it usually surrounds the separator
+		if((config.get("reply_separator") instanceof String)
+			&& !((String) config.get("reply_separator")).isEmpty()) {
+			setMessageCoalescing((String) config.get("reply_separator"));
+		} else {
+			setMessageCoalescing(null);
+		}
+
+		//Networks with legacy clients still talk UTF-8 among themselves
+		//The encoding of outgoing lines is left to the application
+		if((config.get("fallback_encoding") instanceof String)
+			&& !Utilities.supertrim((String) config.get("fallback_encoding")).isEmpty()) {
+			try {
+				setFallbackEncoding(Utilities.supertrim((String) config.get("fallback_encoding")));
+			} catch(UnsupportedEncodingException e) {
+				throw new IllegalArgumentException("Fallback encoding is not supported", e);
+			}
+		}
+
+		//Leave the threading mode alone unless it is configured
+		if(config.get("virtual_threads") instanceof Boolean) {
+			try {
+				setVirtualThreads((Boolean) config.get("virtual_threads"));
+			} catch(UnsupportedOperationException e) {
+				throw new IllegalArgumentException("Virtual threads are not available", e);
+			}
+		}
+
 		//Load commands from configuration
 		loadFixedCommands();
 		loadSynonymousCommands();
@@ -278,6 +423,8 @@ public class PCommandBot extends PircBot {
 			throw new IllegalArgumentException("Could not find admin password");
 		}
 
+		compileSynonyms();
+
 		//Ready
 		isready = true;
 	}
@@ -386,10 +533,17 @@ public class PCommandBot extends PircBot {
 		channels = new String[0];
 		commandprefix = DEFAULT_COMMAND_PREFIX;
 		argumentterminator = "";
+		commandscanner = createCommandScanner();
 		defaultprivate = "";
 		mentionedresponse = "";
 		getResponders().clear();
 		getSynonymousCommands().clear();
+		compiledsynonyms = null;
+		try {
+			setFallbackEncoding(null);
+		} catch(UnsupportedEncodingException e) {
+			//Cannot happen for null
+		}
 		isready = false;
 	}
 
@@ -469,6 +623,18 @@ public class PCommandBot extends PircBot {
 		return argumentterminator;
 	}
 
+	/**
+	 * Create the scanner used to find commands from the current
+	 * command prefix and argument terminator. This is called whenever
+	 * the configuration changes, so that the scanner is not rebuilt
+	 * for every message.
+	 * @return Scanner that finds commands
+	 * @see #invokeCommands(MessageContext)
+	 */
+	protected CommandScanner createCommandScanner() {
+		return new CommandScanner(getCommandPrefix(), getArgumentTerminator());
+	}
+
 	/**
 	 * Get the default message sent as a response to a message
 	 * that mentions this bot.
@@ -489,12 +655,28 @@ public class PCommandBot extends PircBot {
 		return defaultprivate;
 	}
 
+	/**
+	 * Get the time after which a response to a command that is still
+	 * waiting to be sent is dropped, since a late response only holds up
+	 * fresher ones. A response that is wrapped over several lines is
+	 * sent or dropped as a whole. Other messages never expire.
+	 * @return Time to live of responses in milliseconds, or 0 for no limit
+	 * @see PircBot#sendMessage(String, String, int, long)
+	 */
+	protected long getResponseTimeToLive() {
+		return DEFAULT_RESPONSE_TIME_TO_LIVE;
+	}
+
 	/**
 	 * Get lists of users, as a map of channel names to lists of nicks.
 	 * These lists should be used to track nicks for processing mentions.
+	 * They are not thread-safe, so they should only be used by the thread
+	 * that reads messages from the server; the bot finds the mentions in
+	 * a message on that thread before any responder can run elsewhere.
 	 * All channel names and nicks are lowercase, such that
 	 * {@code str.toLowerCase(java.util.Locale.ENGLISH).equals(str)}
-	 * returns {@code true}.
+	 * returns {@code true}. Lists created by this bot are {@link NickSet}s,
+	 * which allow mentions to be found without copying each word of a message.
 	 * @return Lists of users, as a map
 	 * @see String#toLowerCase()
 	 */
@@ -523,6 +705,8 @@ public class PCommandBot extends PircBot {
 	 * registered as a synonym to be invoked in turn; nonexistent synonyms
 	 * are ignored. These synonyms cannot themselves be synonymous commands.
 	 * This map can be used to add, remove, and change commands.
+	 * To change the synonyms of a command, put a new array into the map
+	 * rather than modifying an existing array, so that the change is noticed.
 	 * All command strings (in both keys and values)are lowercase such that
 	 * {@code str.toLowerCase(java.util.Locale.ENGLISH).equals(str)}
 	 * returns {@code true}.
@@ -533,6 +717,130 @@ public class PCommandBot extends PircBot {
 		return syncommands;
 	}
 
+	/**
+	 * Get the executor used for asynchronous responders. Responses to
+	 * messages that invoke {@link AsyncResponder}s are also delivered
+	 * from this executor, each delivery waiting for the responses in order.
+	 * By default, this is a pool that creates threads as needed, or, if
+	 * virtual threads are used, an executor that starts a new virtual thread
+	 * for each task.
+	 * @return Executor for asynchronous responders
+	 * @see ExecutorResponder
+	 * @see #setVirtualThreads(boolean)
+	 */
+	public Executor getResponderExecutor() {
+		Executor executor = responderexecutor;
+		if(executor != null) {
+			return executor;
+		}
+		return isUsingVirtualThreads() ? virtualexecutor : defaultexecutor;
+	}
+
+	/**
+	 * Get the overload state as of the last message received.
+	 * @return Current overload state
+	 * @see #setOverloadWatermarks(int, int)
+	 */
+	public OverloadState getOverloadState() {
+		return overloadstate.get();
+	}
+
+	/**
+	 * Set the outgoing queue depths at which the bot starts to shed responses.
+	 * When a message is received and the number of lines waiting to be sent
+	 * has reached the shedding watermark, the mentioned response and default
+	 * private message are no longer sent. Once it has reached the core-only
+	 * watermark, only responses to the core command are sent, and other
+	 * responders are not even invoked. Each change of state is logged.
+	 * With virtual threads, received messages that are waiting to be
+	 * processed count as lines waiting to be sent, and a message for
+	 * a channel or nick that already has as many waiting as the core-only
+	 * watermark is dropped.
+	 * @param shedding Queue depth at which to enter {@link OverloadState#SHEDDING}
+	 * @param coreonly Queue depth at which to enter {@link OverloadState#CORE_ONLY}
+	 * @throws IllegalArgumentException If a watermark is not positive,
+	 * or if the shedding watermark is higher than the core-only watermark
+	 * @see PircBot#getOutgoingQueueSize()
+	 */
+	public void setOverloadWatermarks(int shedding, int coreonly) {
+		if((shedding <= 0) || (coreonly < shedding)) {
+			throw new IllegalArgumentException("Invalid overload watermarks");
+		}
+		sheddingwatermark = shedding;
+		coreonlywatermark = coreonly;
+	}
+
+	/**
+	 * Get the outgoing queue depth at which the bot enters {@link OverloadState#SHEDDING}.
+	 * @return Shedding watermark
+	 */
+	public int getSheddingWatermark() {
+		return sheddingwatermark;
+	}
+
+	/**
+	 * Get the outgoing queue depth at which the bot enters {@link OverloadState#CORE_ONLY}.
+	 * @return Core-only watermark
+	 */
+	public int getCoreOnlyWatermark() {
+		return coreonlywatermark;
+	}
+
+	/**
+	 * Get the number of times the overload state has changed.
+	 * @return Number of changes of overload state
+	 */
+	public long getOverloadTransitions() {
+		return overloadtransitions.get();
+	}
+
+	/**
+	 * Get the number of responses that were not sent because of overload.
+	 * @return Number of responses shed
+	 */
+	public long getShedResponses() {
+		return shedresponses.get();
+	}
+
+	/**
+	 * Update the overload state from the depth of the outgoing queue
+	 * and the number of messages waiting to be processed,
+	 * logging and counting any change.
+	 * @return New overload state
+	 */
+	protected OverloadState updateOverloadState() {
+		int depth = getOutgoingQueueSize()+pendingcount.get();
+		OverloadState state;
+		if(depth >= coreonlywatermark) {
+			state = OverloadState.CORE_ONLY;
+		} else if(depth >= sheddingwatermark) {
+			state = OverloadState.SHEDDING;
+		} else {
+			state = OverloadState.NORMAL;
+		}
+		OverloadState previous = overloadstate.getAndSet(state);
+		if(previous != state) {
+			overloadtransitions.incrementAndGet();
+			log("*** Overload state changed from "+previous+" to "+state+" (outgoing queue and waiting messages: "+depth+")");
+		}
+		return state;
+	}
+
+	/**
+	 * Set the executor used for asynchronous responders.
+	 * Since deliveries wait for responses on this executor, an executor with
+	 * a fixed number of threads may stall if all of them are waiting for
+	 * responders that are queued behind them.
+	 * @param executor Executor for asynchronous responders
+	 * @see #getResponderExecutor()
+	 */
+	public void setResponderExecutor(Executor executor) {
+		if(executor == null) {
+			throw new NullPointerException("Executor cannot be null");
+		}
+		responderexecutor = executor;
+	}
+
 	/**
 	 * Start the bot. This will connect the bot to the server
 	 * and listen for commands.
@@ -596,16 +904,32 @@ public class PCommandBot extends PircBot {
 	@Override
 	protected void onUserList(String channel, User[] users) {
 		if(!getUserLists().containsKey(channel)) {
-			getUserLists().put(channel, new java.util.HashSet<String>());
+			getUserLists().put(channel, new NickSet());
 		}
 		java.util.Set<String> userset = getUserLists().get(channel);
 		userset.clear();
+		String nick;
+		int start;
 		for(User user : users) {
+			nick = user.getNick().toLowerCase(Locale.ENGLISH);
 			//Remove any prefix
-			userset.add(user.getNick().toLowerCase(Locale.ENGLISH).split("[^a-zA-Z0-9]*", 2)[1]);
+			start = 0;
+			while(start < nick.length() && !isAlphanumeric(nick.charAt(start))) {
+				start++;
+			}
+			userset.add(nick.substring(start));
 		}
 	}
 
+	/**
+	 * Check if a character is an ASCII letter or digit.
+	 * @param c Character to check
+	 * @return {@code true} if the character is alphanumeric, {@code false} otherwise
+	 */
+	private static boolean isAlphanumeric(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+
 	/**
 	 * Process someone joining a channel. This method is overridden to
 	 * place the nick into a list of users for tracking.
@@ -673,28 +997,57 @@ public class PCommandBot extends PircBot {
 
 	/**
 	 * Get the nicks mentioned in a message, if any.
+	 * The message is split into words of characters accepted in nicks,
+	 * and each word that is the nick of a user in the channel is a mention.
 	 * @param channel Channel to which the message was sent
 	 * @param message Message text
-	 * @return Array of mentioned nicks, possibly empty
+	 * @return Array of mentioned nicks (as they appear in the message),
+	 * possibly empty
 	 */
 	protected String[] getMentions(String channel, String message) {
-		String[] nicktokens = NON_NICK_CHARACTERS.split(message);
-		int filtercount = 0;
-		for(int i = 0; i < nicktokens.length; i++) {
-			if(!getUserLists().get(channel).contains(nicktokens[i].toLowerCase(Locale.ENGLISH))) {
-				nicktokens[i] = "";
-				filtercount++;
-			}
+		java.util.Set<String> userset = getUserLists().get(channel);
+		if(userset == null) {
+			return new String[0];
 		}
-		String[] filterednts = new String[nicktokens.length-filtercount];
-		int filteredi = 0;
-		for (String nicktoken : nicktokens) {
-			if (!nicktoken.isEmpty()) {
-				filterednts[filteredi] = nicktoken;
-				filteredi++;
+		List<String> mentions = null;
+		int length = message.length();
+		int start = 0;
+		int end;
+		while(start < length) {
+			if(!Utilities.isNickCharacter(message.charAt(start))) {
+				start++;
+				continue;
 			}
+			end = start + 1;
+			while(end < length && Utilities.isNickCharacter(message.charAt(end))) {
+				end++;
+			}
+			if(containsNick(userset, message, start, end)) {
+				if(mentions == null) {
+					mentions = new java.util.ArrayList<String>();
+				}
+				mentions.add(message.substring(start, end));
+			}
+			start = end;
+		}
+		return (mentions == null) ? new String[0] : mentions.toArray(new String[0]);
+	}
+
+	/**
+	 * Check if a nick that is part of a message is in a list of users.
+	 * If the list is a {@link NickSet}, this is done without copying the nick.
+	 * @param userset List of users, in lowercase
+	 * @param message Message text
+	 * @param start Offset at which the nick starts
+	 * @param end Offset after the last character of the nick
+	 * @return {@code true} if the nick is in the list, {@code false} otherwise
+	 */
+	private static boolean containsNick(java.util.Set<String> userset, String message, int start, int end) {
+		if(userset instanceof NickSet) {
+			return ((NickSet) userset).contains(message, start, end);
+		} else {
+			return userset.contains(message.substring(start, end).toLowerCase(Locale.ENGLISH));
 		}
-		return filterednts;
 	}
 
 	/**
@@ -706,72 +1059,320 @@ public class PCommandBot extends PircBot {
 	 * @return Array of responses (with mentions added), possibly empty
 	 * @throws IllegalStateException If the bot is not ready
 	 * @see #isReady()
+	 * @see #processCommands(MessageContext)
+	 * @deprecated The bot no longer calls this method, so overriding it has
+	 * no effect. Messages are passed to {@link #invokeCommands(MessageContext)}
+	 * and {@link #sendResponses(String, MessageContext, List)} instead,
+	 * so that asynchronous responders do not block the thread that reads
+	 * messages. Override those methods to change how messages are processed.
 	 */
+	@Deprecated
 	protected String[] processCommands(String channel, String sender, String message) {
+		return processCommands(new MessageContext(this, channel, sender, message));
+	}
+
+	/**
+	 * Process any commands in a message into an array of responses.
+	 * This waits for any asynchronous responders to finish.
+	 * @param context Context of the message
+	 * @return Array of responses (with mentions added), possibly empty
+	 * @throws IllegalStateException If the bot is not ready
+	 * @see #isReady()
+	 * @see #invokeCommands(MessageContext)
+	 * @deprecated The bot no longer calls this method, so overriding it has
+	 * no effect. Override {@link #invokeCommands(MessageContext)} and
+	 * {@link #sendResponses(String, MessageContext, List)} instead.
+	 */
+	@Deprecated
+	protected String[] processCommands(MessageContext context) {
+		List<String> responses = new java.util.ArrayList<String>();
+		String response;
+		for(Future<String> future : invokeCommands(context)) {
+			response = getResponse(future);
+			if(!response.isEmpty()) {
+				responses.add(context.getMentionPrefix()+response);
+			}
+		}
+		return responses.toArray(new String[0]);
+	}
+
+	/**
+	 * Invoke the responders for any commands in a message, without waiting
+	 * for asynchronous responders to finish. Other responders are invoked
+	 * directly, and their responses are already available.
+	 * If the message has any commands, its mentions are found first, on
+	 * the calling thread, since the user lists must not be read from
+	 * the threads on which asynchronous responders run.
+	 * @param context Context of the message
+	 * @return List of future responses (without mentions added), in the order
+	 * in which the commands appear, possibly empty
+	 * @throws IllegalStateException If the bot is not ready
+	 * @see #isReady()
+	 */
+	protected List<Future<String>> invokeCommands(MessageContext context) {
 		if(!isReady()) {
 			throw new IllegalStateException("Bot is not ready");
 		}
-		String termpattern;
-		if(getArgumentTerminator().isEmpty()) {
-			termpattern = "$";
-		} else {
-			termpattern = "(?:"+Pattern.quote(getArgumentTerminator())+"|$)";
-		}
-		Matcher matcher = Pattern.compile(
-				Pattern.quote(getCommandPrefix())
-				+"([^\\p{javaSpaceChar}\\p{javaISOControl}]+?)"
-				+"("
-				+Utilities.WHITESPACE.pattern()
-				+"(.*?)"
-				+")?"
-				+termpattern
-				, Pattern.DOTALL
-			)
-			.matcher(message);
-		String[] mentions;
-		if(channel != null) {
-			mentions = getMentions(channel, message);
-		} else {
-			mentions = new String[0];
-		}
-		List<String> responses = new java.util.ArrayList<String>();
-		String command;
+		String message = context.getMessage();
+		CommandScanner.Cursor cursor = commandscanner.scan(message);
+		List<Future<String>> responses = new java.util.ArrayList<Future<String>>();
+		boolean coreonly = (overloadstate.get() == OverloadState.CORE_ONLY);
 		String argument;
-		String[] synonyms;
-		String response;
-		while(matcher.find()) {
-			command = matcher.group(1);
-			argument = matcher.group(3);
-			//If there is nothing after the command string,
-			//groups 2 and 3 will be null
-			if(argument == null) {
-				argument = "";
+		Responder[] synresponders;
+		Responder responder;
+		boolean first = true;
+		while(cursor.find()) {
+			if(first) {
+				context.getMentions();
+				first = false;
+			}
+			if(cursor.hasArgument()) {
+				argument = Utilities.supertrim(message, cursor.getArgumentStart(), cursor.getArgumentEnd());
 			} else {
-				argument = Utilities.supertrim(argument);
+				argument = "";
 			}
 			//Check synonymous command
-			if(getSynonymousCommands().containsKey(command)) {
-				synonyms = getSynonymousCommands().get(command);
-				for(String synonym : synonyms) {
-					if(getResponders().containsKey(synonym)) {
-						response = getResponders().get(synonym).respond(channel, sender, mentions, argument);
-						if(!response.isEmpty()) {
-							responses.add(Utilities.toMentionPrefix(mentions)+response);
-						}
+			synresponders = getSynonymResponders(message, cursor.getCommandStart(), cursor.getCommandEnd());
+			if(synresponders != null) {
+				for(Responder synresponder : synresponders) {
+					if(coreonly && !(synresponder instanceof CoreCommandResponder)) {
+						shedresponses.incrementAndGet();
+						continue;
 					}
+					responses.add(invokeResponderAsync(synresponder, context, argument));
 				}
 				//Do not check regular responder
 				continue;
 			}
 			//Check regular responder
-			if(getResponders().containsKey(command)) {
-				response = getResponders().get(command).respond(channel, sender, mentions, argument);
-				if(!response.isEmpty()) {
-					responses.add(Utilities.toMentionPrefix(mentions)+response);
+			responder = getCommand(getResponders(), message, cursor.getCommandStart(), cursor.getCommandEnd());
+			if(responder != null) {
+				if(coreonly && !(responder instanceof CoreCommandResponder)) {
+					shedresponses.incrementAndGet();
+					continue;
 				}
+				responses.add(invokeResponderAsync(responder, context, argument));
 			}
 		}
-		return responses.toArray(new String[0]);
+		return responses;
+	}
+
+	/**
+	 * Invoke a responder and wait for its response. A {@link ContextResponder}
+	 * receives the context directly, and an {@link AsyncResponder} is waited for.
+	 * Any other responder receives the circumstances of the message through
+	 * {@link Responder#respond(String, String, String[], String)},
+	 * which requires the mentions to be computed.
+	 * @param responder Responder to invoke
+	 * @param context Context of the message
+	 * @param argument Argument to the command, trimmed
+	 * @return Response from the responder
+	 */
+	static String invokeResponder(Responder responder, MessageContext context, String argument) {
+		if(responder instanceof AsyncResponder) {
+			return getResponse(((AsyncResponder) responder).respondAsync(context, argument));
+		} else if(responder instanceof ContextResponder) {
+			return ((ContextResponder) responder).respond(context, argument);
+		} else {
+			return responder.respond(context.getChannel(), context.getSender(), context.getMentions(), argument);
+		}
+	}
+
+	/**
+	 * Invoke a responder without waiting for it if it is asynchronous.
+	 * @param responder Responder to invoke
+	 * @param context Context of the message
+	 * @param argument Argument to the command, trimmed
+	 * @return Future response from the responder
+	 * @see #invokeResponder(Responder, MessageContext, String)
+	 */
+	private static Future<String> invokeResponderAsync(Responder responder, MessageContext context, String argument) {
+		if(responder instanceof AsyncResponder) {
+			return ((AsyncResponder) responder).respondAsync(context, argument);
+		} else {
+			return new CompletedResponse(invokeResponder(responder, context, argument));
+		}
+	}
+
+	/**
+	 * Wait for a response. If the responder failed, its exception is rethrown
+	 * (wrapped if it is checked). If the thread is interrupted, the response
+	 * is taken to be empty.
+	 * @param future Future response
+	 * @return Response
+	 */
+	private static String getResponse(Future<String> future) {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "";
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if(e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			} else {
+				throw new RuntimeException("Responder failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Send the responses to a message. If all responses are available,
+	 * they are sent immediately; otherwise they are sent from the responder
+	 * executor once they are available, so that the thread that reads
+	 * messages is not blocked. Either way, they are sent in order. If there
+	 * are no responses, the mentioned response or default private message
+	 * is sent instead, as appropriate, with bulk priority so that it does not
+	 * hold up replies to commands; these are not sent at all while the bot
+	 * is overloaded.
+	 * @param target Channel or nick to which to send the responses
+	 * @param context Context of the message
+	 * @param responses Future responses, in order
+	 * @see #invokeCommands(MessageContext)
+	 */
+	protected void sendResponses(final String target, final MessageContext context, final List<Future<String>> responses) {
+		for(Future<String> response : responses) {
+			if(!response.isDone()) {
+				getResponderExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						deliverResponses(target, context, responses);
+					}
+				});
+				return;
+			}
+		}
+		deliverResponses(target, context, responses);
+	}
+
+	/**
+	 * Wait for responses and send them in order.
+	 * @param target Channel or nick to which to send the responses
+	 * @param context Context of the message
+	 * @param responses Future responses, in order
+	 * @see #sendResponses(String, MessageContext, List)
+	 */
+	private void deliverResponses(String target, MessageContext context, List<Future<String>> responses) {
+		boolean responded = false;
+		String response;
+		for(Future<String> future : responses) {
+			try {
+				response = getResponse(future);
+			} catch(RuntimeException e) {
+				log("### Responder failed: "+e);
+				continue;
+			}
+			if(!response.isEmpty()) {
+				sendMessage(target, context.getMentionPrefix()+response, PRIORITY_INTERACTIVE, getResponseTimeToLive());
+				responded = true;
+			}
+		}
+		if(!responded) {
+			boolean shedding = (overloadstate.get() != OverloadState.NORMAL);
+			if(context.getChannel() != null) {
+				if(!getMentionedResponse().isEmpty() && context.isBotMentioned()) {
+					if(shedding) {
+						shedresponses.incrementAndGet();
+					} else {
+						sendMessage(target, getMentionedResponse(), PRIORITY_BULK);
+					}
+				}
+			} else {
+				if(!getDefaultPrivate().isEmpty()) {
+					if(shedding) {
+						shedresponses.incrementAndGet();
+					} else {
+						sendMessage(target, getDefaultPrivate(), PRIORITY_BULK);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the responders that a synonymous command invokes, in order.
+	 * The synonymous commands are compiled into arrays of responders,
+	 * which are compiled again whenever {@link #getResponders()} or
+	 * {@link #getSynonymousCommands()} is modified.
+	 * @param message Message text
+	 * @param start Offset at which the command string starts
+	 * @param end Offset after the last character of the command string
+	 * @return Responders for the synonyms, or {@code null} if the
+	 * command is not a synonymous command
+	 */
+	private Responder[] getSynonymResponders(String message, int start, int end) {
+		Map<String, Responder> respmap = getResponders();
+		Map<String, String[]> synmap = getSynonymousCommands();
+		if(!(respmap instanceof CommandTable) || !(synmap instanceof CommandTable)) {
+			//Changes cannot be detected, so resolve synonyms every time
+			String[] synonyms = getCommand(synmap, message, start, end);
+			return (synonyms == null) ? null : resolveSynonyms(synonyms);
+		}
+		CompiledSynonyms compiled = compiledsynonyms;
+		if((compiled == null)
+			|| (compiled.responderversion != ((CommandTable<Responder>) respmap).getVersion())
+			|| (compiled.synonymversion != ((CommandTable<String[]>) synmap).getVersion())) {
+			compiled = compileSynonyms();
+		}
+		return compiled.responders.get(message, start, end);
+	}
+
+	/**
+	 * Compile the synonymous commands into arrays of responders.
+	 * @return Compiled synonymous commands
+	 * @see #getSynonymResponders(String, int, int)
+	 */
+	private CompiledSynonyms compileSynonyms() {
+		Map<String, Responder> respmap = getResponders();
+		Map<String, String[]> synmap = getSynonymousCommands();
+		//Record versions first so that changes during compilation are not missed
+		int responderversion = (respmap instanceof CommandTable) ? ((CommandTable<Responder>) respmap).getVersion() : 0;
+		int synonymversion = (synmap instanceof CommandTable) ? ((CommandTable<String[]>) synmap).getVersion() : 0;
+		CommandTable<Responder[]> compiledmap = new CommandTable<Responder[]>();
+		for(Map.Entry<String, String[]> synentry : synmap.entrySet()) {
+			compiledmap.put(synentry.getKey(), resolveSynonyms(synentry.getValue()));
+		}
+		CompiledSynonyms compiled = new CompiledSynonyms(compiledmap, responderversion, synonymversion);
+		compiledsynonyms = compiled;
+		return compiled;
+	}
+
+	/**
+	 * Resolve synonyms into the responders they invoke.
+	 * Nonexistent synonyms are skipped.
+	 * @param synonyms Command strings of the synonyms
+	 * @return Responders for the synonyms, in order
+	 */
+	private Responder[] resolveSynonyms(String[] synonyms) {
+		List<Responder> synresponders = new java.util.ArrayList<Responder>(synonyms.length);
+		Responder responder;
+		for(String synonym : synonyms) {
+			responder = getResponders().get(synonym);
+			if(responder != null) {
+				synresponders.add(responder);
+			}
+		}
+		return synresponders.toArray(new Responder[0]);
+	}
+
+	/**
+	 * Look up a command string that is part of a message. If the map is a
+	 * {@link CommandTable}, this is done without copying the command string.
+	 * @param map Map of command strings
+	 * @param message Message text
+	 * @param start Offset at which the command string starts
+	 * @param end Offset after the last character of the command string
+	 * @return Value mapped to the command string, or {@code null} if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	private static <V> V getCommand(Map<String, V> map, String message, int start, int end) {
+		if(map instanceof CommandTable) {
+			return ((CommandTable<V>) map).get(message, start, end);
+		} else {
+			return map.get(message.substring(start, end));
+		}
 	}
 
 	/**
@@ -786,18 +1387,7 @@ public class PCommandBot extends PircBot {
 	 */
 	@Override
 	protected void onMessage(String channel, String sender, String login, String hostname, String message) {
-		String[] responses = processCommands(channel, sender, message);
-		if(responses.length > 0) {
-			for(String response : responses) {
-				sendMessage(channel, response);
-			}
-		} else {
-			if(java.util.Arrays.asList(getMentions(channel, message.toLowerCase(Locale.ENGLISH)))
-				.contains(getNick().toLowerCase(Locale.ENGLISH))
-				&& !getMentionedResponse().isEmpty()) {
-				sendMessage(channel, getMentionedResponse());
-			}
-		}
+		dispatchMessage(channel, new MessageContext(this, channel, sender, message));
 	}
 
 	/**
@@ -810,15 +1400,177 @@ public class PCommandBot extends PircBot {
 	 */
 	@Override
 	protected void onPrivateMessage(String sender, String login, String hostname, String message) {
-		String[] responses = processCommands(null, sender, message);
-		if(responses.length > 0) {
-			for(String response : responses) {
-				sendMessage(sender, response);
+		dispatchMessage(sender, new MessageContext(this, null, sender, message));
+	}
+
+	/**
+	 * Invoke the commands in a message and send the responses. If virtual
+	 * threads are used, this is done on a virtual thread, so that
+	 * the thread that reads messages is never blocked by a responder.
+	 * Messages for different targets are then processed concurrently,
+	 * so responders must be thread-safe, but the messages for each target
+	 * are processed one at a time, in order, so that the responses are
+	 * sent in order. The overload state is updated first. A message for
+	 * a target that already has as many messages waiting as the core-only
+	 * watermark is dropped, and counted as shed.
+	 * @param target Channel or nick to which to send the responses
+	 * @param context Context of the message
+	 * @see #setVirtualThreads(boolean)
+	 * @see #updateOverloadState()
+	 */
+	private void dispatchMessage(final String target, final MessageContext context) {
+		updateOverloadState();
+		if(!isUsingVirtualThreads()) {
+			sendResponses(target, context, invokeCommands(context));
+			return;
+		}
+		//The user lists may only be read from this thread
+		if((context.getChannel() != null) && (!getMentionedResponse().isEmpty()
+			|| commandscanner.scan(context.getMessage()).find())) {
+			context.getMentions();
+		}
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				List<Future<String>> responses;
+				try {
+					responses = invokeCommands(context);
+				} catch(RuntimeException e) {
+					log("### Responder failed: "+e);
+					return;
+				}
+				//Blocking is cheap on a virtual thread
+				deliverResponses(target, context, responses);
 			}
-		} else {
-			if(!getDefaultPrivate().isEmpty()) {
-				sendMessage(sender, getDefaultPrivate());
+		};
+		java.util.Queue<Runnable> queue;
+		synchronized(pendingmessages) {
+			queue = pendingmessages.get(target);
+			if(queue != null) {
+				if(queue.size() >= coreonlywatermark) {
+					shedresponses.incrementAndGet();
+					return;
+				}
+				//The thread for this target will get to it
+				queue.add(task);
+				pendingcount.incrementAndGet();
+				return;
+			}
+			queue = new java.util.LinkedList<Runnable>();
+			pendingmessages.put(target, queue);
+		}
+		startThread(new TargetRunner(target, queue, task));
+	}
+
+	/**
+	 * Processes the messages for one target in order, then removes
+	 * the target from the waiting messages
+	 */
+	private class TargetRunner implements Runnable {
+		/**
+		 * Channel or nick to which the responses are sent
+		 */
+		private final String target;
+
+		/**
+		 * Messages waiting for this target
+		 */
+		private final java.util.Queue<Runnable> queue;
+
+		/**
+		 * Next message to process
+		 */
+		private Runnable next;
+
+		TargetRunner(String t, java.util.Queue<Runnable> q, Runnable first) {
+			target = t;
+			queue = q;
+			next = first;
+		}
+
+		@Override
+		public void run() {
+			while(next != null) {
+				try {
+					next.run();
+				} catch(RuntimeException e) {
+					log("### Could not process message: "+e);
+				}
+				synchronized(pendingmessages) {
+					next = queue.poll();
+					if(next == null) {
+						pendingmessages.remove(target);
+					} else {
+						pendingcount.decrementAndGet();
+					}
+				}
 			}
 		}
 	}
+
+	/**
+	 * Synonymous commands compiled into responders, along with the versions
+	 * of the maps from which they were compiled
+	 */
+	private static class CompiledSynonyms {
+		/**
+		 * Responders for each synonymous command
+		 */
+		final CommandTable<Responder[]> responders;
+
+		/**
+		 * Version of the responder map when compiled
+		 */
+		final int responderversion;
+
+		/**
+		 * Version of the synonymous command map when compiled
+		 */
+		final int synonymversion;
+
+		CompiledSynonyms(CommandTable<Responder[]> r, int rv, int sv) {
+			responders = r;
+			responderversion = rv;
+			synonymversion = sv;
+		}
+	}
+
+	/**
+	 * Response that is already available
+	 */
+	static class CompletedResponse implements Future<String> {
+		/**
+		 * Response
+		 */
+		private final String response;
+
+		CompletedResponse(String r) {
+			response = r;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return true;
+		}
+
+		@Override
+		public String get() {
+			return response;
+		}
+
+		@Override
+		public String get(long timeout, TimeUnit unit) {
+			return response;
+		}
+	}
 }
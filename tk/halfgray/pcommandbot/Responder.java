@@ -9,6 +9,7 @@ package tk.halfgray.pcommandbot;
  * A class shall implement the
  * {@link #respond(String, String, String[], String)} method to provide
  * an appropriate response.
+ * @see ContextResponder
  */
 public interface Responder {
 	/**
@@ -15,6 +15,20 @@ public class Utilities {
 	 */
 	public static final Pattern WHITESPACE = Pattern.compile("[\\p{javaSpaceChar}\\p{javaISOControl}]+");
 
+	/**
+	 * Bit table of whitespace characters, indexed by {@code char} value
+	 * @see #isWhitespace(char)
+	 */
+	private static final long[] WHITESPACE_TABLE = new long[(Character.MAX_VALUE + 1) >>> 6];
+
+	static {
+		for(int c = Character.MIN_VALUE; c <= Character.MAX_VALUE; c++) {
+			if(Character.isSpaceChar(c) || Character.isISOControl(c)) {
+				WHITESPACE_TABLE[c >>> 6] |= 1L << c;
+			}
+		}
+	}
+
 	/**
 	 * Normalizer that converts keys to lowercase strings.
 	 * The conversion to lowercase is done with
@@ -33,18 +47,104 @@ public class Utilities {
 		}
 	};
 
+	/**
+	 * Check if a character is whitespace, in the same sense as
+	 * {@link #WHITESPACE}: that is, if it satisfies either
+	 * {@link Character#isSpaceChar(int)} or {@link Character#isISOControl(int)}.
+	 * This uses a precomputed table. No supplementary character is whitespace,
+	 * so surrogates never are either.
+	 * @param c Character to check
+	 * @return {@code true} if the character is whitespace, {@code false} otherwise
+	 */
+	public static boolean isWhitespace(char c) {
+		return (WHITESPACE_TABLE[c >>> 6] & (1L << c)) != 0;
+	}
+
+	/**
+	 * Check if a character is accepted in nicks according to RFC 2812.
+	 * These are the characters not matched by
+	 * {@link PCommandBot#NON_NICK_CHARACTERS}.
+	 * @param c Character to check
+	 * @return {@code true} if the character is accepted in nicks,
+	 * {@code false} otherwise
+	 */
+	public static boolean isNickCharacter(char c) {
+		if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+			return true;
+		}
+		switch(c) {
+			case '[':
+			case ']':
+			case '\\':
+			case '`':
+			case '_':
+			case '^':
+			case '{':
+			case '|':
+			case '}':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Find the first character in part of a character sequence
+	 * that is not whitespace.
+	 * @param seq Character sequence to search
+	 * @param start Offset at which to start searching
+	 * @param end Offset at which to stop searching
+	 * @return Offset of the first non-whitespace character,
+	 * or {@code end} if there is none
+	 * @see #isWhitespace(char)
+	 */
+	public static int skipWhitespace(CharSequence seq, int start, int end) {
+		while(start < end && isWhitespace(seq.charAt(start))) {
+			start++;
+		}
+		return start;
+	}
+
+	/**
+	 * Find the first whitespace character in part of a character sequence.
+	 * @param seq Character sequence to search
+	 * @param start Offset at which to start searching
+	 * @param end Offset at which to stop searching
+	 * @return Offset of the first whitespace character,
+	 * or -1 if there is none
+	 * @see #isWhitespace(char)
+	 */
+	public static int indexOfWhitespace(CharSequence seq, int start, int end) {
+		for(int i = start; i < end; i++) {
+			if(isWhitespace(seq.charAt(i))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * "Supertrim" a string. That is, remove all characters at the beginning
-	 * and end that satisfy either {@link Character#isSpaceChar(int)} or
+	 * that satisfy either {@link Character#isSpaceChar(int)} or
 	 * {@link Character#isISOControl(int)}. This may remove more characters
-	 * than {@link String#trim()}.
+	 * than {@link String#trim()} at the beginning, but unlike it, characters
+	 * at the end are never removed.
 	 * @param str String to supertrim
 	 * @return Supertrimmed string
 	 */
 	public static String supertrim(String str) {
-		java.util.regex.Matcher m = Pattern.compile("^[\\p{javaSpaceChar}\\p{javaISOControl}]*(.*)[\\p{javaSpaceChar}\\p{javaISOControl}]*$", Pattern.DOTALL).matcher(str);
-		m.matches();
-		return m.group(1);
+		return str.substring(skipWhitespace(str, 0, str.length()));
+	}
+
+	/**
+	 * Supertrim part of a character sequence, as with {@link #supertrim(String)}.
+	 * @param seq Character sequence containing the part to supertrim
+	 * @param start Offset at which the part starts
+	 * @param end Offset after the last character of the part
+	 * @return Supertrimmed part, as a string
+	 */
+	public static String supertrim(CharSequence seq, int start, int end) {
+		return seq.subSequence(skipWhitespace(seq, start, end), end).toString();
 	}
 
 	/**
@@ -57,13 +157,17 @@ public class Utilities {
 	public static String toMentionPrefix(String[] mentions) {
 		if(mentions.length == 0) {
 			return "";
-		} else {
-			String tmp = mentions[0];
-			for(int i = 1; i < mentions.length; i++) {
-				tmp += (", " + mentions[i]);
-			}
-			tmp += ": ";
-			return tmp;
 		}
+		int length = 2 * mentions.length;
+		for(String mention : mentions) {
+			length += mention.length();
+		}
+		StringBuilder prefix = new StringBuilder(length);
+		prefix.append(mentions[0]);
+		for(int i = 1; i < mentions.length; i++) {
+			prefix.append(", ").append(mentions[i]);
+		}
+		prefix.append(": ");
+		return prefix.toString();
 	}
 }